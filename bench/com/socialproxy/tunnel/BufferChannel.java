@@ -0,0 +1,49 @@
+package com.socialproxy.tunnel;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/* Stands in for a channel's local socket, so that the benchmarks go
+ * through TChannel.readFrom() and writeTo() like the real one: reads give
+ * what is left of a buffer, writes are dropped. Never blocks, never ends. */
+final class BufferChannel implements ReadableByteChannel, WritableByteChannel
+{
+	private final ByteBuffer data;
+
+	BufferChannel (ByteBuffer data)
+	{
+		this.data = data;
+	}
+
+	/* the next reads give all of data again */
+	void rewind ()
+	{
+		data.clear();
+	}
+
+	@Override
+	public int read (ByteBuffer dst)
+	{
+		int size = Math.min(dst.remaining(), data.remaining());
+		int limit = data.limit();
+		data.limit(data.position() + size);
+		dst.put(data);
+		data.limit(limit);
+		return size;
+	}
+
+	@Override
+	public int write (ByteBuffer src)
+	{
+		int size = src.remaining();
+		src.position(src.limit());
+		return size;
+	}
+
+	@Override
+	public boolean isOpen () {return true;}
+
+	@Override
+	public void close () {}
+}
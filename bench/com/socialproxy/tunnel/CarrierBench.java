@@ -0,0 +1,105 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/* The carrier's multiplexing without I/O or encryption (see CipherBench).
+ * Two carriers that are never started stand for the two ends. One op is
+ * every channel having messageSize bytes to send:
+ *   fillSendbuf: the sender's channels take the bytes as from their local
+ *     sockets and fillSendbuf() packs them into DATA messages until all
+ *     are out, then the acks come back.
+ *   processRecvbuf: the receiver's processRecvbuf() takes the same DATA
+ *     messages one recvbuf at a time and its channels hand the bytes on
+ *     as to their local sockets. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CarrierBench
+{
+	@Param({"64", "1024", "8000"})
+	public int messageSize;
+
+	@Param({"1", "16", "1000"})
+	public int channels;
+
+	private Carrier sender;
+	private Carrier receiver;
+	private TChannel [] senderChannels;
+	private TChannel [] receiverChannels;
+	private BufferChannel local;
+	private final ArrayList<byte[]> recvbufs = new ArrayList<byte[]>();
+
+	/* 1-126, then the extended IDs from 128 */
+	static int channelId (int index)
+	{
+		return index < 126 ? index + 1 : index + 2;
+	}
+
+	@Setup
+	public void setup () throws Exception
+	{
+		byte [] key = new byte [128/8];
+		sender = new Carrier(PipeTransport.pair()[0], false, key, key);
+		receiver = new Carrier(PipeTransport.pair()[0], true, key, key);
+		// more than 126 channels
+		sender.setExtendedIds(true);
+		receiver.setExtendedIds(true);
+		senderChannels = new TChannel [channels];
+		receiverChannels = new TChannel [channels];
+		for (int i = 0; i < channels; i ++) {
+			senderChannels[i] = sender.benchConnect(channelId(i), Carrier.MAX_CHANNEL_WINDOW);
+			receiverChannels[i] = receiver.benchConnect(channelId(i), Carrier.MAX_CHANNEL_WINDOW);
+		}
+		local = new BufferChannel(ByteBuffer.allocate(messageSize));
+		for (int i = 0; i < channels; i ++) {
+			local.rewind();
+			senderChannels[i].readFrom(local);
+		}
+		ByteBuffer sendbuf;
+		while ((sendbuf = sender.benchFillSendbuf()).position() > 0) {
+			byte [] copy = new byte [sendbuf.position()];
+			System.arraycopy(sendbuf.array(), 0, copy, 0, copy.length);
+			recvbufs.add(copy);
+		}
+		for (TChannel channel : senderChannels)
+			channel.onAck(messageSize);
+	}
+
+	@Benchmark
+	public int fillSendbuf () throws IOException
+	{
+		for (TChannel channel : senderChannels) {
+			local.rewind();
+			channel.readFrom(local);
+		}
+		int total = 0;
+		ByteBuffer sendbuf;
+		while ((sendbuf = sender.benchFillSendbuf()).position() > 0)
+			total += sendbuf.position();
+		for (TChannel channel : senderChannels)
+			channel.onAck(messageSize);
+		return total;
+	}
+
+	@Benchmark
+	public int processRecvbuf () throws CarrierProtocolException, IOException
+	{
+		for (byte [] messages : recvbufs)
+			receiver.benchProcessRecvbuf(messages, 0, messages.length);
+		int total = 0;
+		for (TChannel channel : receiverChannels)
+			total += channel.writeTo(local);
+		return total;
+	}
+}
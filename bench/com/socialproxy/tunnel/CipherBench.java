@@ -0,0 +1,69 @@
+package com.socialproxy.tunnel;
+
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/* The carrier's AES-CTR pass over size bytes, in place with the input
+ * CIPHER_GAP bytes after the output as Carrier.run() does it.
+ *   staged: the send path before the in-place change, encrypting into a
+ *     separate buffer and copying back, to compare encrypt with. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CipherBench
+{
+	@Param({"64", "1024", "16384"})
+	public int size;
+
+	private Cipher encCipher;
+	private Cipher decCipher;
+	private byte [] buf;
+	private byte [] tmpbuf;
+
+	private static Cipher newCipher (int mode) throws Exception
+	{
+		Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+		cipher.init(mode, new SecretKeySpec(new byte [128/8], "AES"),
+				new IvParameterSpec(new byte [128/8]));
+		return cipher;
+	}
+
+	@Setup
+	public void setup () throws Exception
+	{
+		encCipher = newCipher(Cipher.ENCRYPT_MODE);
+		decCipher = newCipher(Cipher.DECRYPT_MODE);
+		buf = new byte [size + Carrier.CIPHER_GAP];
+		tmpbuf = new byte [size];
+	}
+
+	@Benchmark
+	public int encrypt () throws Exception
+	{
+		return encCipher.update(buf, Carrier.CIPHER_GAP, size, buf, 0);
+	}
+
+	@Benchmark
+	public int decrypt () throws Exception
+	{
+		return decCipher.update(buf, Carrier.CIPHER_GAP, size, buf, 0);
+	}
+
+	@Benchmark
+	public int staged () throws Exception
+	{
+		int encsize = encCipher.update(buf, 0, size, tmpbuf, 0);
+		System.arraycopy(tmpbuf, 0, buf, 0, encsize);
+		return encsize;
+	}
+}
@@ -0,0 +1,60 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/* One channel's side of the data path, size bytes per op:
+ *   onDATA: the carrier hands in a DATA message, the local socket drains it.
+ *   sendToCarrier: the local socket gives bytes, the carrier takes them
+ *     and acks come back. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TChannelBench
+{
+	@Param({"64", "1024", "8000"})
+	public int size;
+
+	private TChannel channel;
+	private byte [] data;
+	private BufferChannel local;
+	private ByteBuffer dst;
+
+	@Setup
+	public void setup ()
+	{
+		byte [] key = new byte [128/8];
+		Carrier carrier = new Carrier(PipeTransport.pair()[0], false, key, key);
+		channel = carrier.benchConnect(1, Carrier.MAX_CHANNEL_WINDOW);
+		data = new byte [size];
+		local = new BufferChannel(ByteBuffer.allocate(size));
+		dst = ByteBuffer.allocate(Carrier.MAX_MESSAGESIZE);
+	}
+
+	@Benchmark
+	public int onDATA () throws CarrierProtocolException, IOException
+	{
+		channel.onDATA(data, 0, size, 0);
+		return channel.writeTo(local);
+	}
+
+	@Benchmark
+	public int sendToCarrier () throws IOException
+	{
+		local.rewind();
+		channel.readFrom(local);
+		dst.clear();
+		int sent = channel.sendToCarrier(dst, Carrier.MAX_DATASIZE);
+		channel.onAck(sent);
+		return sent;
+	}
+}
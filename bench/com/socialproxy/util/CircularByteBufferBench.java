@@ -0,0 +1,48 @@
+package com.socialproxy.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/* put() then get() of size bytes. the capacity is no multiple of size, so
+ * the copies wrap around the end now and then as they do in TChannel. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CircularByteBufferBench
+{
+	private static final int CAPACITY = 100 * 1024 + 1;
+
+	@Param({"64", "1024", "16384"})
+	public int size;
+
+	@Param({"heap", "direct"})
+	public String storage;
+
+	private CircularByteBuffer buffer;
+	private byte [] in;
+	private byte [] out;
+
+	@Setup
+	public void setup ()
+	{
+		buffer = new CircularByteBuffer(storage.equals("direct") ?
+				ByteBuffer.allocateDirect(CAPACITY) : ByteBuffer.allocate(CAPACITY));
+		in = new byte [size];
+		out = new byte [size];
+	}
+
+	@Benchmark
+	public int putGet ()
+	{
+		buffer.put(in, 0, size);
+		return buffer.get(out, 0, size);
+	}
+}
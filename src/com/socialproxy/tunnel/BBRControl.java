@@ -0,0 +1,224 @@
+package com.socialproxy.tunnel;
+
+/* A simplified BBR (Cardwell et al., "BBR: Congestion-Based Congestion
+ * Control", ACM Queue 2016) for UDPTransport. It models the path by its
+ * bottleneck bandwidth, the max delivery rate of the last BW_ROUNDS round
+ * trips, and by its min RTT of the last MIN_RTT_WINDOW_NS, and paces at the
+ * bandwidth times a gain instead of backing off on loss:
+ *   STARTUP raises the rate by HIGH_GAIN each round until it stops growing,
+ *   DRAIN empties the queue that STARTUP built,
+ *   PROBE_BW cycles the gain to look for more bandwidth and drain again,
+ *   PROBE_RTT shrinks the window for a moment to measure the min RTT anew.
+ * Only used by the transport's thread. */
+final class BBRControl
+{
+	private static final double HIGH_GAIN = 2.885; // 2/ln(2)
+	private static final double [] CYCLE_GAINS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+	private static final int BW_ROUNDS = 10;
+	private static final long MIN_RTT_WINDOW_NS = 10000000000L;
+	private static final long PROBE_RTT_NS = 200000000L;
+	private static final long INITIAL_RTT_NS = 100000000L;
+	private static final int INITIAL_CWND_PACKETS = 32;
+	private static final int MIN_CWND_PACKETS = 4;
+	private static final int STARTUP = 0;
+	private static final int DRAIN = 1;
+	private static final int PROBE_BW = 2;
+	private static final int PROBE_RTT = 3;
+
+	private final int packetSize;
+	private int state = STARTUP;
+	private double pacingGain = HIGH_GAIN;
+	private double cwndGain = HIGH_GAIN;
+	private final long [] bwSamples = new long [BW_ROUNDS]; // max delivery rate of each recent round
+	private long btlBw; // bytes per second, 0 if no sample yet
+	private long minRtt; // 0 if no sample yet
+	private long minRttStamp;
+	private long round;
+	private long roundEndDelivered; // a packet sent after this much was delivered starts a round
+	private boolean roundStart;
+	private boolean sampleAppLimited;
+	private long delivered;
+	private long ackedBytes; // since the last update()
+	private long cwnd;
+	private long pacingRate; // 0 until the first bandwidth sample
+	private long fullBw;
+	private int fullBwRounds;
+	private boolean filledPipe;
+	private int cycleIndex;
+	private long cycleStamp;
+	private long probeRttDone; // 0 until inflight is down to the min window
+
+	BBRControl (int packetSize)
+	{
+		this.packetSize = packetSize;
+		cwnd = INITIAL_CWND_PACKETS * packetSize;
+	}
+
+	/* a packet is acked. packetDelivered is how much had been delivered
+	 * when it was sent, delivered how much now. */
+	void onPacketAcked (long packetDelivered, long delivered, long deliveryRate, boolean appLimited)
+	{
+		if (packetDelivered >= roundEndDelivered) {
+			roundEndDelivered = delivered;
+			round ++;
+			roundStart = true;
+			bwSamples[(int)(round % BW_ROUNDS)] = 0;
+		}
+		ackedBytes += delivered - this.delivered;
+		this.delivered = delivered;
+		sampleAppLimited = appLimited;
+		// an application limited sample only tells that the path can do at least that much
+		if (deliveryRate > 0 && (!appLimited || deliveryRate > btlBw)) {
+			int index = (int)(round % BW_ROUNDS);
+			if (deliveryRate > bwSamples[index])
+				bwSamples[index] = deliveryRate;
+		}
+		long max = 0;
+		for (long sample : bwSamples)
+			max = Math.max(max, sample);
+		btlBw = max;
+	}
+
+	void onRtt (long rtt, long now)
+	{
+		boolean expired = minRtt != 0 && now - minRttStamp > MIN_RTT_WINDOW_NS;
+		if (minRtt == 0 || rtt <= minRtt || expired) {
+			minRtt = rtt;
+			minRttStamp = now;
+		}
+		if (expired && state != PROBE_RTT) {
+			state = PROBE_RTT;
+			pacingGain = 1;
+			cwndGain = 1;
+			probeRttDone = 0;
+		}
+	}
+
+	/* after all packets of an ack are handled */
+	void update (long now, long inFlight)
+	{
+		switch (state) {
+		case STARTUP:
+			// a sender that had nothing to send can't tell that the pipe is full
+			if (roundStart && !sampleAppLimited)
+				checkFullPipe();
+			if (filledPipe) {
+				state = DRAIN;
+				pacingGain = 1 / HIGH_GAIN;
+				cwndGain = HIGH_GAIN;
+			}
+			break;
+		case DRAIN:
+			if (inFlight <= bdp())
+				enterProbeBw(now);
+			break;
+		case PROBE_BW:
+			if (now - cycleStamp > minRtt) {
+				cycleIndex = (cycleIndex + 1) % CYCLE_GAINS.length;
+				cycleStamp = now;
+				pacingGain = CYCLE_GAINS[cycleIndex];
+			}
+			break;
+		case PROBE_RTT:
+			if (probeRttDone == 0) {
+				if (inFlight <= MIN_CWND_PACKETS * packetSize)
+					probeRttDone = now + PROBE_RTT_NS;
+			} else if (now - probeRttDone >= 0) {
+				minRttStamp = now;
+				if (filledPipe) {
+					enterProbeBw(now);
+				} else {
+					state = STARTUP;
+					pacingGain = HIGH_GAIN;
+					cwndGain = HIGH_GAIN;
+				}
+			}
+			break;
+		}
+		roundStart = false;
+		updateCwnd();
+		updatePacingRate();
+	}
+
+	/* bytes that may be in flight */
+	long cwnd ()
+	{
+		if (state == PROBE_RTT)
+			return MIN_CWND_PACKETS * packetSize;
+		return cwnd;
+	}
+
+	/* bytes per second */
+	long pacingRate ()
+	{
+		long rate = pacingRate != 0 ? pacingRate : initialPacingRate();
+		return Math.max(rate, packetSize * 100);
+	}
+
+	long getBandwidth ()
+	{
+		return btlBw;
+	}
+
+	long getMinRtt ()
+	{
+		return minRtt;
+	}
+
+	private long bdp ()
+	{
+		return btlBw * minRtt / 1000000000L;
+	}
+
+	private long initialPacingRate ()
+	{
+		return (long)(HIGH_GAIN * INITIAL_CWND_PACKETS * packetSize * 1000000000L /
+				(minRtt != 0 ? minRtt : INITIAL_RTT_NS));
+	}
+
+	/* the window moves towards cwndGain times the BDP by the bytes acked.
+	 * before the pipe is full it only grows, like slow start, so that the
+	 * first small samples don't hold it back. */
+	private void updateCwnd ()
+	{
+		long target = btlBw == 0 || minRtt == 0 ? INITIAL_CWND_PACKETS * packetSize :
+			(long)(cwndGain * bdp()) + 3 * packetSize;
+		if (filledPipe)
+			cwnd = Math.min(cwnd + ackedBytes, target);
+		else if (cwnd < target || delivered < INITIAL_CWND_PACKETS * packetSize)
+			cwnd += ackedBytes;
+		cwnd = Math.max(cwnd, MIN_CWND_PACKETS * packetSize);
+		ackedBytes = 0;
+	}
+
+	/* likewise the rate doesn't drop before the pipe is full */
+	private void updatePacingRate ()
+	{
+		if (btlBw == 0)
+			return;
+		long rate = (long)(pacingGain * btlBw);
+		if (filledPipe || rate > (pacingRate != 0 ? pacingRate : initialPacingRate()))
+			pacingRate = rate;
+	}
+
+	/* the pipe is full once three rounds in a row fail to grow bandwidth by a quarter */
+	private void checkFullPipe ()
+	{
+		if (btlBw >= fullBw * 5 / 4) {
+			fullBw = btlBw;
+			fullBwRounds = 0;
+		} else if (++ fullBwRounds >= 3) {
+			filledPipe = true;
+		}
+	}
+
+	private void enterProbeBw (long now)
+	{
+		state = PROBE_BW;
+		cwndGain = 2;
+		// start after the probing and draining phases
+		cycleIndex = 2;
+		cycleStamp = now;
+		pacingGain = CYCLE_GAINS[cycleIndex];
+	}
+}
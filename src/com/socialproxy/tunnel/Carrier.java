@@ -1,20 +1,28 @@
 package com.socialproxy.tunnel;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.ByteBuffer;
-import java.util.Random;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.spec.IvParameterSpec;
 import com.socialproxy.util.HexEncoding;
+import com.socialproxy.util.IPAddress;
+import com.socialproxy.util.TokenBucket;
 
 /* A carrier can carry mutiple tunneled channels.
  * It acts as a multiplexer bewteen multiple channels (frontend)
@@ -24,6 +32,16 @@ import com.socialproxy.util.HexEncoding;
  * so the constructor expects the encryption & decryption keys.
  */
 public class Carrier implements Runnable {
+	/* told, in the carrier thread, how the peer answered the CON1 of a
+	 * channel we created. connected() is called before the channel starts
+	 * relaying on the socket, rejected() before the socket is closed. */
+	public interface ConnectListener
+	{
+		void connected (SocketChannel socket);
+		/* reason is that of the CON2, or REASON_CARRIER_CLOSED */
+		void rejected (SocketChannel socket, int reason);
+	}
+
 	private static final boolean LOGTRAFFIC = false;
 	public static final int STATE_EMPTY      = 0;
 	public static final int STATE_CONNECTING = 1;
@@ -35,44 +53,173 @@ public class Carrier implements Runnable {
 	public static final byte CTRL_PING = 4;
 	public static final byte CTRL_PONG = 5;
 	public static final byte CTRL_PADD = 6;
+	public static final byte CTRL_PRIO = 7;
+	public static final byte CTRL_CAPS = 8;
+	/* reasons of a CON2 */
+	public static final int REASON_NOT_ALLOWED = 1;
+	public static final int REASON_CONNECT_FAILED = 2;
+	// not on the wire, the carrier closed before the CON2 came
+	public static final int REASON_CARRIER_CLOSED = 256;
+	/* capability bits of CAPS */
+	private static final int CAP_EXTENDED_IDS = 1;
+	private static final int CAP_EARLY_DATA = 2;
+	/* channel IDs 1-126 fit in one byte. with extended IDs, a channel ID
+	 * byte of EXTENDED_ID is followed by a 2 byte ID in [128, MAX_CHANNEL_ID],
+	 * even ones created by the minor, odd ones by the major. */
+	private static final int EXTENDED_ID = 127;
+	public static final int MAX_CHANNEL_ID = 65535;
+	private static final int LEGACY_IDS = 63; // per side
+	private static final int IDS_PER_SIDE = LEGACY_IDS + (MAX_CHANNEL_ID - 128 + 1) / 2;
+	private static final int SLOT_PAGE_SIZE = 256;
 	public static final int ACK_UNIT = 4096;
 	public static final int MAX_ACK = 255;
 	public static final int MAX_MESSAGESIZE = 8192;
 	public static final int MAX_DATASIZE = MAX_MESSAGESIZE - 4;
-	private static final int CHANNEL_RECVBUF_SIZE = 100 * ACK_UNIT;
+	// a channel's initial receive window, grown by TChannel as needed
+	static final int CHANNEL_RECVBUF_SIZE = 100 * ACK_UNIT;
+	// the initial window when the memory budget is tight
+	public static final int MIN_CHANNEL_WINDOW = 16 * ACK_UNIT;
+	public static final int MAX_CHANNEL_WINDOW = 8192 * ACK_UNIT;
+	/* with early data, what the creator of a channel may send before the
+	 * CON2, i.e. before it knows the peer's window. the peer buffers it
+	 * until the target is connected. not more than MIN_CHANNEL_WINDOW. */
+	public static final int EARLY_DATA_CREDIT = 4 * ACK_UNIT;
+	public static final long DEFAULT_WINDOW_BUDGET = 64L << 20;
 	private static final int CHANNEL_SENDBUF_SIZE = MAX_DATASIZE;
-	private static final int SELECT_TIMEOUT_MS = 500; // timeout is needed for speed limit
+	/* ciphertext is placed this many bytes after where its plaintext goes.
+	 * the JCE copies the input of an update() to a new array when the output
+	 * overlaps it less than two AES blocks behind, so this is what makes
+	 * in-place encryption and decryption really in place. */
+	static final int CIPHER_GAP = 32;
+	public static final int DEFAULT_SEND_BATCH = 4;
+	public static final int DEFAULT_WEIGHT = 1;
+	public static final int MAX_WEIGHT = 255;
+	// bytes a channel of weight 1 may send per round
+	private static final int DRR_QUANTUM = MAX_DATASIZE;
+	/* interactive channels are served before bulk channels, except that
+	 * bulk gets a DATA message after INTERACTIVE_MAX_RUN interactive ones
+	 * in a row, so that a busy interactive channel can't starve it.
+	 * while interactive traffic is flowing, bulk DATA messages are cut to
+	 * BULK_MAX_DATASIZE so that no interactive message waits behind a
+	 * full size one. */
+	public static final int PRIORITY_INTERACTIVE = 0;
+	public static final int PRIORITY_BULK = 1;
+	public static final int DEFAULT_PRIORITY = PRIORITY_BULK;
+	private static final int BULK_MAX_DATASIZE = 1024;
+	private static final long INTERACTIVE_HOLD_NS = 1000000000L;
+	private static final int INTERACTIVE_MAX_RUN = 16;
+	/* the carrier thread only wakes up for I/O and for deadlines: the next
+	 * tick, and throttled channels or DATA that may go again.
+	 * While there is traffic, or a channel has something to give back
+	 * later, it ticks every TICK_NS and PINGs every PING_INTERVAL_NS to
+	 * measure RTT. Otherwise it only wakes up to send a keepalive PING,
+	 * or never if keepalive is disabled.
+	 * A PING unanswered for STALL_NS marks the carrier unhealthy, so that
+	 * new channels go elsewhere; after DEAD_PEER_NS the carrier closes,
+	 * because the backend connection can be half open for much longer. */
+	private static final long TICK_NS = 1000000000L;
+	private static final long PING_INTERVAL_NS = 2000000000L;
+	private static final long STALL_NS = PING_INTERVAL_NS * 5;
+	private static final long DEAD_PEER_NS = 30000000000L;
+	public static final int DEFAULT_KEEPALIVE_SECONDS = 30;
 	private final static Logger LOG = Logger.getLogger(Carrier.class.getName());
-	private static final Pattern PATTERN_IPV4 = Pattern.compile(
-			"([0-9]+)\\.([0-9]+)\\.([0-9]+)\\.([0-9]+)");
-	private static final Pattern PATTERN_IPV6 = Pattern.compile(
-			"([0-9a-f]{1,4}:){7}([0-9a-f]){1,4}");
-	private static final Pattern PATTERN_DNSNAME = Pattern.compile(
-			"^[A-Za-z0-9-]+(\\.[A-Za-z0-9-]+)*(\\.[A-Za-z]{2,})$");
-
-	private final SocketChannel backsock;
+
+	private final Transport backend;
 	private final boolean isMajor; // minor creates [1, 63]; major creates [64, 126]
-	private final Slot[] slots;
+	/* the slot of channel ID cid is slotPages[cid / SLOT_PAGE_SIZE][cid % SLOT_PAGE_SIZE].
+	 * pages are created when an ID in them is first used. */
+	private final AtomicReferenceArray<Slot[]> slotPages =
+		new AtomicReferenceArray<Slot[]>(MAX_CHANNEL_ID / SLOT_PAGE_SIZE + 1);
+	private final ChannelIdAllocator channelIds = new ChannelIdAllocator(IDS_PER_SIDE); // the IDs we create
+	private boolean extendedIdsEnabled = false;
+	// set once the peer's CAPS says it takes extended IDs, then we create them too
+	private volatile boolean peerExtendedIds = false;
+	private boolean earlyDataEnabled = false;
+	// set once the peer's CAPS says it takes early data, then we send it
+	private volatile boolean peerEarlyData = false;
 	private final Cipher encCipher;
 	private final Cipher decCipher;
 	private final Selector selector;
-	private final ByteBuffer recvbuf = ByteBuffer.allocate(MAX_MESSAGESIZE * 2);
-	private final ByteBuffer sendbuf = ByteBuffer.allocate(MAX_MESSAGESIZE * 2);
-	private final ByteBuffer controlSendbuf = ByteBuffer.allocate(1000); // control messages are small
-	private boolean hasAnyData; // hasAnyData=true iff any channel's hasData=true
-	private final Random rand = new Random();
-	private boolean carrierClosed = false;
+	private final ByteBuffer recvbuf = ByteBuffer.allocate(MAX_MESSAGESIZE * 2 + CIPHER_GAP);
+	private static final int SENDBUF_SIZE = MAX_MESSAGESIZE * 2 + CIPHER_GAP;
+	/* outgoing traffic is built in sendbuf. once it can't take another DATA
+	 * message it is sealed and queued in sendQueue, and a free chunk becomes
+	 * the new sendbuf. the queue and sendbuf go out in one gathering write. */
+	private ByteBuffer sendbuf = ByteBuffer.allocate(SENDBUF_SIZE);
+	private final ArrayDeque<ByteBuffer> sendQueue = new ArrayDeque<ByteBuffer>();
+	private final ArrayDeque<ByteBuffer> freeSendbufs = new ArrayDeque<ByteBuffer>();
+	private int sendBatch = DEFAULT_SEND_BATCH;
+	private ByteBuffer [] sendArray; // sendQueue as array for write()
+	/* the receive windows of this carrier's channels may only grow beyond
+	 * their initial size while they fit in windowBudget and in memory,
+	 * which is shared with other carriers */
+	private volatile long windowBudget = DEFAULT_WINDOW_BUDGET;
+	private final AtomicLong windowReserved = new AtomicLong(0);
+	private MemoryBudget memory = MemoryBudget.global();
+	private Connector connector = null; // null means Connector.global()
+	private long nextTickNanos; // 0 if none
+	private long tickBytes; // bytesSent + bytesReceived at the last tick
+	private long keepAliveNanos = DEFAULT_KEEPALIVE_SECONDS * 1000000000L;
+	private long lastPingNanos;
+	private int pingNonce;
+	private long pingSentNanos; // 0 if no ping outstanding
+	private volatile long pingUnansweredNanos; // when the first unanswered PING went, 0 if none
+	/* estimates of the backend connection, see CarrierStats. only written
+	 * by the carrier thread. */
+	private volatile long rttNanos; // smoothed, 0 if not measured yet
+	private volatile long rttVarNanos;
+	private volatile long minRttNanos;
+	private volatile long lastRttNanos;
+	private volatile long rttSamples;
+	private volatile long bytesSent;
+	private volatile long bytesReceived;
+	private volatile long sendRate;
+	private volatile long recvRate;
+	private long rateNanos; // when the rates were last updated
+	private long rateBytesSent;
+	private long rateBytesReceived;
+	/* control messages to send, each encoded in its own array. any thread
+	 * may add, only the carrier thread takes them out in fillSendbuf(). */
+	private final Queue<byte[]> controlQueue = new ConcurrentLinkedQueue<byte[]>();
+	/* DATA scheduling is deficit round robin over the channels in a ready
+	 * queue, the ones with hasData set. There is one ready queue per
+	 * priority. ackQueue holds channels that want to send an ack-only
+	 * message. A slot is in a queue iff its flag is set. */
+	private final Queue<Slot> interactiveQueue = new ConcurrentLinkedQueue<Slot>();
+	private final Queue<Slot> bulkQueue = new ConcurrentLinkedQueue<Slot>();
+	private final Queue<Slot> ackQueue = new ConcurrentLinkedQueue<Slot>();
+	private long lastInteractiveNanos = System.nanoTime() - INTERACTIVE_HOLD_NS;
+	private int interactiveRun = 0; // interactive DATA messages since the last bulk one
+	/* speed throttling, see docs/carrier-protocol.txt. DATA is sent while
+	 * both rateLimit and sharedRateLimit have tokens; each channel limits
+	 * its local socket reads with a bucket of channelRate. Throttled
+	 * channels and the DATA loop are resumed at the time their bucket
+	 * refills rather than polled. */
+	private static final TokenBucket GLOBAL_RATE_LIMIT = new TokenBucket(0);
+	private final TokenBucket rateLimit = new TokenBucket(0);
+	private TokenBucket sharedRateLimit = GLOBAL_RATE_LIMIT;
+	private volatile long channelRate = 0;
+	private long dataResumeNanos = 0; // when throttled DATA may go again, 0 if not throttled
+	private final ArrayList<TChannel> throttledChannels = new ArrayList<TChannel>(); // event loop mode only
+	private volatile boolean carrierClosed = false;
+	private final AtomicInteger channelCount = new AtomicInteger(0); // slots not EMPTY
+	private Executor channelExecutor = null; // null means event loop
+	private Thread carrierThread;
+	// channels connected outside the carrier thread, waiting to be registered
+	private final Queue<TChannel> pendingChannels = new ConcurrentLinkedQueue<TChannel>();
 
 	public Carrier (SocketChannel backend, boolean isMajor, byte[] enckey, byte[] deckey)
+	{
+		this(new TCPTransport(backend), isMajor, enckey, deckey);
+	}
+
+	public Carrier (Transport backend, boolean isMajor, byte[] enckey, byte[] deckey)
 	{
 		assert enckey.length == 128/8;
 		assert deckey.length == 128/8;
 
-		backsock = backend;
+		this.backend = backend;
 		this.isMajor = isMajor;
-		slots = new Slot[127];
-		for (int i = 1; i <= 126; i ++)
-			slots[i] = new Slot(i, STATE_EMPTY);
 
 		try {
 			encCipher = Cipher.getInstance("AES/CTR/NoPadding");
@@ -94,61 +241,208 @@ public class Carrier implements Runnable {
 		}
 	}
 
+	/* By default every channel's local socket is registered on the carrier's
+	 * selector and relayed by the carrier thread, so a carrier needs exactly
+	 * one thread no matter how many channels it carries.
+	 * With an executor, each channel instead does blocking I/O on two tasks
+	 * of the executor. Either way the connects for CON1 go through the
+	 * Connector. See ChannelExecutors. Must be called before run(). */
+	public void setChannelExecutor (Executor executor)
+	{
+		channelExecutor = executor;
+	}
+
+	/* the maximum number of sendbuf chunks, each holding up to
+	 * 2*MAX_MESSAGESIZE bytes, that are queued and written to the backend
+	 * in one system call. Must be called before run(). */
+	public void setSendBatch (int sendBatch)
+	{
+		if (sendBatch < 1)
+			throw new IllegalArgumentException("sendBatch=" + sendBatch);
+		this.sendBatch = sendBatch;
+	}
+
+	/* the total size in bytes that the receive buffers of this carrier's
+	 * channels may grow to when the channels auto-tune their windows */
+	public void setWindowBudget (long windowBudget)
+	{
+		this.windowBudget = windowBudget;
+	}
+
+	/* how often an idle carrier PINGs its peer, so that NATs and
+	 * firewalls on the way keep the connection. 0 disables it, an idle
+	 * carrier then sleeps until there is I/O. Must be called before run(). */
+	public void setKeepAlive (int seconds)
+	{
+		if (seconds < 0)
+			throw new IllegalArgumentException("seconds=" + seconds);
+		keepAliveNanos = seconds * 1000000000L;
+	}
+
+	/* whether to offer the peer channel IDs beyond 126 with CAPS. peers
+	 * that don't know CAPS close the carrier on it, so it is off unless
+	 * both sides are known to take it; each side then creates at most 63
+	 * channels. Must be called before run(). */
+	public void setExtendedIds (boolean enabled)
+	{
+		extendedIdsEnabled = enabled;
+	}
+
+	/* whether to offer the peer early data with CAPS: a new channel's
+	 * first EARLY_DATA_CREDIT bytes go right after the CON1, without
+	 * waiting a round trip for the CON2. Channels created with a
+	 * ConnectListener don't, their clients wait for the answer anyway.
+	 * Off by default, like setExtendedIds(). Must be called before run(). */
+	public void setEarlyData (boolean enabled)
+	{
+		earlyDataEnabled = enabled;
+	}
+
+	/* the bucket shared by carriers that aren't given one */
+	public static TokenBucket globalRateLimit ()
+	{
+		return GLOBAL_RATE_LIMIT;
+	}
+
+	/* limit the DATA this carrier sends, in bytes per second. 0 means
+	 * unlimited. Can be called at any time. */
+	public void setRateLimit (long bytesPerSecond)
+	{
+		rateLimit.setRate(bytesPerSecond);
+	}
+
+	/* limit what each channel created from now on reads from its local
+	 * socket, in bytes per second. 0 means unlimited. */
+	public void setChannelRateLimit (long bytesPerSecond)
+	{
+		if (bytesPerSecond < 0)
+			throw new IllegalArgumentException("bytesPerSecond=" + bytesPerSecond);
+		channelRate = bytesPerSecond;
+	}
+
+	/* the bucket this carrier shares with others, by default
+	 * globalRateLimit(). Must be called before run(). */
+	public void setSharedRateLimit (TokenBucket bucket)
+	{
+		sharedRateLimit = bucket;
+	}
+
+	/* what connects to the targets of the peer's CON1s, by default
+	 * Connector.global(). Must be called before run(). */
+	public void setConnector (Connector connector)
+	{
+		this.connector = connector;
+	}
+
+	/* the budget for the receive windows of all channels, by default
+	 * MemoryBudget.global(). Must be called before run(). */
+	public void setMemoryBudget (MemoryBudget memory)
+	{
+		this.memory = memory;
+	}
+
 	@Override
 	public void run ()
 	{
-		SelectionKey selkey;
+		carrierThread = Thread.currentThread();
+		sendArray = new ByteBuffer[sendBatch];
+		rateNanos = nextTickNanos = System.nanoTime();
+		if (earlyDataEnabled && memory.isTight()) {
+			// each connecting channel of the peer could hold EARLY_DATA_CREDIT
+			LOG.info("memory tight, not offering early data");
+			earlyDataEnabled = false;
+		}
+		int caps = (extendedIdsEnabled ? CAP_EXTENDED_IDS : 0) |
+			(earlyDataEnabled ? CAP_EARLY_DATA : 0);
+		if (caps != 0)
+			controlQueue.add(controlFrame(CTRL_CAPS, 2).putShort((short)caps).array());
+		/* every way out closes the channels, the selector and the backend,
+		 * and gives back the channels' memory */
 		try {
-			backsock.configureBlocking(false);
-			selkey = backsock.register(selector, 0);
+			backend.register(selector);
+			runLoop();
 		} catch (IOException x) {
-			throw new RuntimeException(x);
+			// a reset or broken backend is the same as end of stream
+			LOG.log(Level.INFO, "backend error, closing all channels", x);
+		} finally {
+			closeAllChannels();
 		}
-		ByteBuffer tmpbuf = ByteBuffer.allocate(MAX_MESSAGESIZE * 2);
+	}
+
+	/* return when the carrier is closed */
+	private void runLoop () throws IOException
+	{
 		while (true) {
-			int selops = sendbuf.position() > 0 ?
+			int selops = sendbuf.position() > 0 || !sendQueue.isEmpty() ?
 				(SelectionKey.OP_READ | SelectionKey.OP_WRITE) :
 				SelectionKey.OP_READ;
-			selkey.interestOps(selops);
+			backend.setInterest(selops);
 			LOG.finer("selecting: " +
 					((selops & SelectionKey.OP_READ) == 0 ? "" : "r") +
 					((selops & SelectionKey.OP_WRITE) == 0 ? "" : "w"));
-			try {
-				selector.select(SELECT_TIMEOUT_MS);
-			} catch (IOException x) {
-				throw new RuntimeException(x);
+			long deadline = nextTickNanos;
+			long throttleDeadline = nextThrottleDeadline();
+			if (throttleDeadline != 0 && (deadline == 0 || throttleDeadline - deadline < 0))
+				deadline = throttleDeadline;
+			long backendDeadline = backend.nextDeadline();
+			if (backendDeadline != 0 && (deadline == 0 || backendDeadline - deadline < 0))
+				deadline = backendDeadline;
+			if (deadline == 0) {
+				selector.select();
+			} else {
+				long wait = (deadline - System.nanoTime() + 999999) / 1000000;
+				if (wait > 0)
+					selector.select(wait);
+				else
+					selector.selectNow();
 			}
-			LOG.finer("selected " +
-					(selector.selectedKeys().size() == 1 && selkey.isReadable() ? "r" : "") +
-					(selector.selectedKeys().size() == 1 && selkey.isWritable() ? "w" : ""));
 
 			if (carrierClosed) {
 				LOG.info("closing carrier");
-				closeAllChannels();
 				return;
 			}
 
-			if (selector.selectedKeys().size() == 1 && selkey.isReadable()) {
+			TChannel pending;
+			while ((pending = pendingChannels.poll()) != null)
+				pending.register(selector);
+			long now = System.nanoTime();
+			if (!throttledChannels.isEmpty())
+				resumeThrottledChannels(now);
+			if (nextTickNanos != 0 && now - nextTickNanos >= 0)
+				tick(now);
+
+			/* channel sockets are served first so that the data they read
+			 * can go out in this round's fillSendbuf() */
+			for (SelectionKey key : selector.selectedKeys())
+				if (key.attachment() instanceof TChannel && key.isValid())
+					((TChannel)key.attachment()).onSelected();
+			int ready = backend.poll();
+			selector.selectedKeys().clear();
+			boolean backReadable = (ready & SelectionKey.OP_READ) != 0;
+			boolean backWritable = (ready & SelectionKey.OP_WRITE) != 0;
+			LOG.finer("selected " + (backReadable ? "r" : "") + (backWritable ? "w" : ""));
+
+			if (backReadable) {
 				/* recvbuf layout:
 				 * | partial message (pos) freespace (limit,cap) | */
 				assert recvbuf.limit() == recvbuf.capacity();
-				assert recvbuf.remaining() > MAX_MESSAGESIZE;
-				tmpbuf.clear();
-				tmpbuf.limit(recvbuf.remaining());
-				int size;
-				try {
-					size = backsock.read(tmpbuf);
-				} catch (IOException x) {
-					throw new RuntimeException(x);
-				}
+				assert recvbuf.remaining() > MAX_MESSAGESIZE + CIPHER_GAP;
+				int mark = recvbuf.position();
+				recvbuf.position(mark + CIPHER_GAP);
+				int size = backend.read(recvbuf);
 				if (size == -1) {
-					LOG.info("backsock.read()=-1 closing all channels");
-					closeAllChannels();
+					LOG.info("backend.read()=-1 closing all channels");
 					return;
-				} else if (size > 0) {
-					tmpbuf.flip();
+				}
+				recvbuf.position(mark + (size > 0 ? size : 0));
+				if (size > 0) {
+					bytesReceived += size;
+					trafficSeen(now);
+					/* | plaintext (mark) gap ciphertext | freespace (limit,cap) |
+					 * decrypt in place, CTR mode is copy-safe */
 					try {
-						int decsize = decCipher.update(tmpbuf, recvbuf);
+						int decsize = decCipher.update(recvbuf.array(), mark + CIPHER_GAP, size,
+								recvbuf.array(), mark);
 						assert decsize == size;
 					} catch (javax.crypto.ShortBufferException x) {
 						throw new RuntimeException(x);
@@ -158,80 +452,126 @@ public class Carrier implements Runnable {
 						processRecvbuf();
 					} catch (CarrierProtocolException x) {
 						LOG.log(Level.WARNING, "error processing Recvbuf", x);
-						closeAllChannels();
 						return;
 					}
 					recvbuf.compact();
 					assert recvbuf.limit() == recvbuf.capacity();
-					assert recvbuf.remaining() > MAX_MESSAGESIZE;
+					assert recvbuf.remaining() > MAX_MESSAGESIZE + CIPHER_GAP;
 				}
 			}
 
 			/* sendbuf layout:
 			 * | ciphertext (pos) freespace (limit,cap) | */
 			assert sendbuf.limit() == sendbuf.capacity();
-			if (sendbuf.hasRemaining()) {
+			while (true) {
+				if (sendbuf.remaining() < MAX_MESSAGESIZE + CIPHER_GAP &&
+						sendQueue.size() + 1 < sendBatch)
+					sealSendbuf();
+				if (sendbuf.remaining() <= CIPHER_GAP)
+					break;
 				int mark = sendbuf.position();
+				sendbuf.position(mark + CIPHER_GAP);
 				fillSendbuf();
-				/* | ciphertext (mark) plaintext (pos) freespace (limit,cap) | */
-				assert sendbuf.position() >= mark;
-				if (sendbuf.position() > mark) {
+				/* | ciphertext (mark) gap plaintext (pos) freespace (limit,cap) | */
+				int size = sendbuf.position() - mark - CIPHER_GAP;
+				assert size >= 0;
+				if (size > 0) {
+					// encrypt in place
 					try {
-						encCipher.update(sendbuf.array(), mark,
-								sendbuf.position() - mark, tmpbuf.array());
+						encCipher.update(sendbuf.array(), mark + CIPHER_GAP, size,
+								sendbuf.array(), mark);
 					} catch (javax.crypto.ShortBufferException x) {
 						throw new RuntimeException(x);
 					}
-					System.arraycopy(tmpbuf.array(), 0,
-							sendbuf.array(), mark,
-							sendbuf.position() - mark);
 				}
+				sendbuf.position(mark + size);
+				// stop unless fillSendbuf() ran out of room
+				if (size == 0 || sendbuf.remaining() >= MAX_MESSAGESIZE + CIPHER_GAP)
+					break;
 			}
 
-			if (selector.selectedKeys().size() == 1 &&
-					selkey.isWritable() &&
-					sendbuf.position() > 0) {
-				sendbuf.flip();
-				try {
-					int size = backsock.write(sendbuf);
-					assert size > 0;
-				} catch (IOException x) {
-					throw new RuntimeException(x);
+			if (backWritable && (sendbuf.position() > 0 || !sendQueue.isEmpty())) {
+				if (sendQueue.size() < sendBatch)
+					sealSendbuf();
+				int count = sendQueue.size();
+				assert count <= sendBatch;
+				sendQueue.toArray(sendArray);
+				long size = backend.write(sendArray, 0, count);
+				assert size >= 0;
+				bytesSent += size;
+				trafficSeen(now);
+				while (!sendQueue.isEmpty() && !sendQueue.peekFirst().hasRemaining()) {
+					ByteBuffer chunk = sendQueue.pollFirst();
+					chunk.clear();
+					freeSendbufs.addLast(chunk);
 				}
-				sendbuf.compact();
 			}
 		}
 	}
 
+	/* move sendbuf to sendQueue and continue with a free chunk */
+	private void sealSendbuf ()
+	{
+		if (sendbuf.position() == 0)
+			return;
+		sendbuf.flip();
+		sendQueue.addLast(sendbuf);
+		sendbuf = freeSendbufs.pollFirst();
+		if (sendbuf == null)
+			sendbuf = ByteBuffer.allocate(SENDBUF_SIZE);
+	}
+
 	/* can be called in any thread
 	 * return true if succeed
 	 * if return false, caller should close the socket. */
 	public boolean createChannel (SocketChannel socket, String peerAddr, int peerPort)
 	{
+		return createChannel(socket, peerAddr, peerPort, DEFAULT_WEIGHT, DEFAULT_PRIORITY);
+	}
+
+	/* weight is the channel's share of the carrier's bandwidth relative to
+	 * other busy channels of the same priority, in [1, MAX_WEIGHT].
+	 * priority is PRIORITY_INTERACTIVE or PRIORITY_BULK.
+	 * both also apply to the peer's side of the channel. */
+	public boolean createChannel (SocketChannel socket, String peerAddr, int peerPort,
+			int weight, int priority)
+	{
+		return createChannel(socket, peerAddr, peerPort, weight, priority, null);
+	}
+
+	/* like above, and the listener, if not null, is told how the peer
+	 * answered. if return false, it is not called. */
+	public boolean createChannel (SocketChannel socket, String peerAddr, int peerPort,
+			int weight, int priority, ConnectListener listener)
+	{
+		return createChannel(socket, peerAddr, peerPort, weight, priority, listener, null);
+	}
+
+	/* like above, and firstData, if not null, goes to the peer ahead of what
+	 * the socket gives: what a caller has read from it already, such as a
+	 * SOCKS client's data sent along with its request. at most
+	 * MAX_DATASIZE bytes, the channel owns it from now on. */
+	public boolean createChannel (SocketChannel socket, String peerAddr, int peerPort,
+			int weight, int priority, ConnectListener listener, ByteBuffer firstData)
+	{
+		if (firstData != null && firstData.remaining() > CHANNEL_SENDBUF_SIZE)
+			throw new IllegalArgumentException("firstData " + firstData.remaining() + " bytes");
+		if (weight < 1 || weight > MAX_WEIGHT)
+			throw new IllegalArgumentException("weight=" + weight);
+		if (priority != PRIORITY_INTERACTIVE && priority != PRIORITY_BULK)
+			throw new IllegalArgumentException("priority=" + priority);
+		// the address is parsed again straight into the frame below
 		int addrtype;
-		byte [] addrbytes;
-		if (PATTERN_IPV4.matcher(peerAddr).matches()) {
+		int addrlen;
+		if (IPAddress.parseIPv4(peerAddr, null)) {
 			addrtype = 0;
-			Matcher matcher = PATTERN_IPV4.matcher(peerAddr);
-			boolean found = matcher.find();
-			assert found;
-			addrbytes = new byte[4];
-			addrbytes[0] = (byte)Integer.parseInt(matcher.group(1));
-			addrbytes[1] = (byte)Integer.parseInt(matcher.group(2));
-			addrbytes[2] = (byte)Integer.parseInt(matcher.group(3));
-			addrbytes[3] = (byte)Integer.parseInt(matcher.group(4));
-		} else if (PATTERN_IPV6.matcher(peerAddr).matches()) {
+			addrlen = 4;
+		} else if (IPAddress.parseIPv6(peerAddr, null)) {
 			addrtype = 1;
-			throw new RuntimeException("ipv6 not implemented yet");
-		} else if (PATTERN_DNSNAME.matcher(peerAddr).matches()) {
+			addrlen = 16;
+		} else if (IPAddress.isHostname(peerAddr)) {
 			addrtype = 2;
-			addrbytes = new byte[peerAddr.length() + 1];
-			try {
-				System.arraycopy(peerAddr.getBytes("UTF-8"),
-						0, addrbytes, 1, peerAddr.length());
-			} catch (java.io.UnsupportedEncodingException x) {
-				throw new RuntimeException(x);
-			}
+			addrlen = 1 + peerAddr.length();
 		} else {
 			LOG.warning("unknown address format " + peerAddr);
 			return false;
@@ -242,36 +582,110 @@ public class Carrier implements Runnable {
 			return false;
 		}
 
-		// TODO race
-		int cid;
-		for (cid = isMajor ? 64 : 1;
-				cid <= (isMajor ? 126 : 63);
-				cid ++)
-			if (slots[cid].state == STATE_EMPTY)
-				break;
-		if (cid > (isMajor ? 126 : 63)) {
+		int index = channelIds.allocate(peerExtendedIds ? IDS_PER_SIDE : LEGACY_IDS);
+		if (index == -1) {
 			LOG.warning("createChannel() channel full");
 			return false;
 		}
-		assert slots[cid].state == STATE_EMPTY;
-		slots[cid].state = STATE_CONNECTING;
-		slots[cid].channel = null;
-		slots[cid].hasAck = slots[cid].hasData = false;
-		slots[cid].socket = socket;
-
-		synchronized (controlSendbuf) {
-			controlSendbuf.put((byte)0);
-			controlSendbuf.put(CTRL_CON1);
-			controlSendbuf.put((byte)cid);
-			controlSendbuf.putShort((short)(CHANNEL_RECVBUF_SIZE / ACK_UNIT));
-			controlSendbuf.put((byte)addrtype);
-			controlSendbuf.putShort((short)peerPort);
-			controlSendbuf.put(addrbytes);
-		}
-		selector.wakeup();
+		int cid = channelIdOf(index);
+		boolean early = listener == null && peerEarlyData;
+		// the ID is ours until we free the slot, nobody else touches it
+		Slot slot = slot(cid);
+		slot.channel = null;
+		slot.closePending = false;
+		slot.hasData = false;
+		slot.weight = weight;
+		slot.priority = priority;
+		slot.socket = socket;
+		slot.listener = listener;
+		slot.firstData = firstData;
+		slot.window = reserveInitialWindow();
+		boolean changed = slot.casState(STATE_EMPTY, STATE_CONNECTING);
+		assert changed;
+		channelCount.incrementAndGet();
+
+		// PRIO goes in the same array so that nothing comes between
+		boolean prio = weight != DEFAULT_WEIGHT || priority != DEFAULT_PRIORITY;
+		ByteBuffer frame = ByteBuffer.allocate(7 + channelIdSize(cid) + addrlen +
+				(prio ? 4 + channelIdSize(cid) : 0));
+		frame.put((byte)0);
+		frame.put(CTRL_CON1);
+		putChannelId(frame, cid);
+		frame.putShort((short)(slot.window / ACK_UNIT));
+		frame.put((byte)addrtype);
+		frame.putShort((short)peerPort);
+		if (addrtype == 0) {
+			IPAddress.parseIPv4(peerAddr, frame);
+		} else if (addrtype == 1) {
+			IPAddress.parseIPv6(peerAddr, frame);
+		} else {
+			// a hostname is ASCII
+			frame.put((byte)peerAddr.length());
+			for (int i = 0; i < peerAddr.length(); i ++)
+				frame.put((byte)peerAddr.charAt(i));
+		}
+		if (prio) {
+			frame.put((byte)0);
+			frame.put(CTRL_PRIO);
+			putChannelId(frame, cid);
+			frame.put((byte)priority);
+			frame.put((byte)weight);
+		}
+		controlQueue.add(frame.array());
+		if (early) {
+			// relay right away, the CON1 is queued before any DATA
+			TChannel channel = new TChannel(
+					Carrier.this, cid,
+					CHANNEL_SENDBUF_SIZE, slot.window,
+					EARLY_DATA_CREDIT, socket);
+			slot.channel = channel;
+			slot.socket = null;
+			if (firstData != null) {
+				// within the credit, EARLY_DATA_CREDIT > CHANNEL_SENDBUF_SIZE
+				channel.sendFirst(firstData);
+				slot.firstData = null;
+			}
+			if (channelExecutor != null) {
+				channel.start(channelExecutor);
+			} else {
+				pendingChannels.add(channel);
+			}
+		}
+		wakeup();
 		return true;
 	}
 
+	/* our CON1 was rejected or won't be answered.
+	 * must only be called in Carrier thread */
+	private void dropConnecting (Slot slot, int reason)
+	{
+		if (slot.channel != null) {
+			// the channel has the window and the socket
+			slot.channel.abort();
+		} else {
+			notifyRejected(slot, reason);
+			try {slot.socket.close();} catch (Exception x) {}
+			slot.socket = null;
+			slot.firstData = null;
+			releaseWindow(slot.window);
+		}
+		slot.state = STATE_EMPTY;
+		freeSlot(slot);
+	}
+
+	/* in the carrier thread, before the socket is closed */
+	private void notifyRejected (Slot slot, int reason)
+	{
+		if (slot.listener == null)
+			return;
+		try {
+			slot.listener.rejected(slot.socket, reason);
+		} catch (Exception x) {
+			LOG.log(Level.WARNING, "ConnectListener error cid=" + slot.id, x);
+		}
+		slot.listener = null;
+	}
+
 	/* can be called in any thread */
 	public void close ()
 	{
@@ -281,19 +695,270 @@ public class Carrier implements Runnable {
 		}
 	}
 
+	/* reserve the receive window of a new channel. always succeeds, but
+	 * the window is only MIN_CHANNEL_WINDOW if memory is tight.
+	 * return the window in bytes, to be released by the channel. */
+	private int reserveInitialWindow ()
+	{
+		int size = CHANNEL_RECVBUF_SIZE;
+		if (memory.isTight() || !memory.tryReserve(size)) {
+			size = MIN_CHANNEL_WINDOW;
+			memory.reserve(size);
+			LOG.fine("memory tight, reserved=" + memory.getReserved() +
+					", initial window " + size);
+		}
+		windowReserved.addAndGet(size);
+		return size;
+	}
+
+	/* called by channel to grow its receive window by size bytes.
+	 * return false if that would exceed the window budget or memory. */
+	boolean tryReserveWindow (int size)
+	{
+		long reserved;
+		do {
+			reserved = windowReserved.get();
+			if (reserved + size > windowBudget)
+				return false;
+		} while (!windowReserved.compareAndSet(reserved, reserved + size));
+		if (!memory.tryReserve(size)) {
+			windowReserved.addAndGet(-size);
+			return false;
+		}
+		return true;
+	}
+
+	/* called by channel when the peer can no longer use size bytes of its
+	 * receive window */
+	void releaseWindow (int size)
+	{
+		windowReserved.addAndGet(-size);
+		memory.release(size);
+	}
+
+	/* channels should give back receive window they don't need */
+	boolean isMemoryTight ()
+	{
+		return memory.isTight();
+	}
+
+	/* called by channel to get storage for its receive buffer. size must
+	 * not be larger than the window the channel has reserved, the storage
+	 * may be, see channelRecvbufSize(). */
+	ByteBuffer allocChannelRecvbuf (int size)
+	{
+		return memory.allocate(size);
+	}
+
+	/* the capacity of allocChannelRecvbuf(size) */
+	int channelRecvbufSize (int size)
+	{
+		return memory.storageSize(size);
+	}
+
+	/* called by channel once nothing touches its receive buffer any more */
+	void freeChannelRecvbuf (ByteBuffer storage)
+	{
+		memory.free(storage);
+	}
+
+	/* whether the carrier is closed or its backend connection is gone.
+	 * can be called in any thread */
+	public boolean isClosed ()
+	{
+		return carrierClosed;
+	}
+
+	/* whether new channels should go to this carrier: it is open and
+	 * the peer answers PINGs. can be called in any thread */
+	public boolean isHealthy ()
+	{
+		long since = pingUnansweredNanos;
+		return !carrierClosed && (since == 0 || System.nanoTime() - since < STALL_NS);
+	}
+
+	/* number of channels open or being opened, in either direction.
+	 * can be called in any thread */
+	public int getChannelCount ()
+	{
+		return channelCount.get();
+	}
+
+	/* smoothed round trip time of the carrier in nanoseconds, measured with
+	 * PING/PONG. 0 if not known yet. */
+	public long getRttNanos ()
+	{
+		return rttNanos;
+	}
+
+	/* can be called in any thread */
+	public CarrierStats getStats ()
+	{
+		return new CarrierStats(rttNanos, rttVarNanos, minRttNanos, lastRttNanos,
+				rttSamples, bytesSent, bytesReceived, sendRate, recvRate);
+	}
+
+	/* called by channel to get a bucket for its local socket reads.
+	 * null if unlimited. */
+	TokenBucket newChannelRateLimit ()
+	{
+		long rate = channelRate;
+		return rate > 0 ? new TokenBucket(rate) : null;
+	}
+
+	/* called by channel in carrier thread when it stops reading until
+	 * its throttledUntil */
+	void throttleChannel (TChannel channel)
+	{
+		throttledChannels.add(channel);
+	}
+
+	private void resumeThrottledChannels (long now)
+	{
+		for (int i = throttledChannels.size() - 1; i >= 0; i --) {
+			TChannel channel = throttledChannels.get(i);
+			if (channel.throttledUntil - now <= 0) {
+				throttledChannels.remove(i);
+				channel.onThrottleExpired();
+			}
+		}
+	}
+
+	/* the earliest nanoTime a throttled channel or DATA resumes, 0 if none */
+	private long nextThrottleDeadline ()
+	{
+		long deadline = dataResumeNanos;
+		for (TChannel channel : throttledChannels)
+			if (deadline == 0 || channel.throttledUntil - deadline < 0)
+				deadline = channel.throttledUntil;
+		return deadline;
+	}
+
+	/* periodic work in carrier thread, see TICK_NS */
+	private void tick (long now)
+	{
+		long bytes = bytesSent + bytesReceived;
+		boolean active = bytes != tickBytes;
+		tickBytes = bytes;
+		if (pingSentNanos != 0) {
+			if (now - pingUnansweredNanos >= DEAD_PEER_NS) {
+				LOG.warning("no PONG for " + (now - pingUnansweredNanos) / 1000000 +
+						"ms, closing carrier");
+				carrierClosed = true;
+				return;
+			}
+			// a lost PONG can't happen on a reliable carrier, but don't wait forever
+			if (now - pingSentNanos >= STALL_NS)
+				sendPING(now);
+		} else if (active ? now - lastPingNanos >= PING_INTERVAL_NS :
+				keepAliveNanos > 0 && now - lastPingNanos >= keepAliveNanos) {
+			sendPING(now);
+		}
+		updateRates(now);
+		boolean busy = active || pingSentNanos != 0;
+		for (int page = 0; page < slotPages.length(); page ++) {
+			Slot [] slots = slotPages.get(page);
+			if (slots == null)
+				continue;
+			for (Slot slot : slots)
+				if (slot.state == STATE_CONNECTED && slot.channel != null)
+					busy |= slot.channel.onTick();
+		}
+		if (busy)
+			nextTickNanos = now + TICK_NS;
+		else if (keepAliveNanos > 0)
+			nextTickNanos = lastPingNanos + keepAliveNanos;
+		else
+			nextTickNanos = 0;
+	}
+
+	/* called in carrier thread after backend I/O. an idle carrier's next
+	 * tick can be far away, bring it back to TICK_NS */
+	private void trafficSeen (long now)
+	{
+		if (nextTickNanos == 0 || nextTickNanos - now > TICK_NS)
+			nextTickNanos = now + TICK_NS;
+	}
+
+	private void updateRates (long now)
+	{
+		long elapsed = now - rateNanos;
+		if (elapsed <= 0)
+			return;
+		long sent = bytesSent;
+		long received = bytesReceived;
+		long sendSample = (long)((double)(sent - rateBytesSent) * 1000000000L / elapsed);
+		long recvSample = (long)((double)(received - rateBytesReceived) * 1000000000L / elapsed);
+		// about the last 4 ticks
+		sendRate = (sendRate * 3 + sendSample) / 4;
+		recvRate = (recvRate * 3 + recvSample) / 4;
+		rateNanos = now;
+		rateBytesSent = sent;
+		rateBytesReceived = received;
+	}
+
+	private void sendPING (long now)
+	{
+		lastPingNanos = now;
+		pingNonce ++;
+		pingSentNanos = now;
+		if (pingUnansweredNanos == 0)
+			pingUnansweredNanos = now;
+		ByteBuffer frame = controlFrame(CTRL_PING, 12);
+		frame.putInt(pingNonce);
+		frame.putLong(System.currentTimeMillis());
+		controlQueue.add(frame.array());
+	}
+
+	/* a buffer for a control message of type with size bytes after the
+	 * header, the header already put. add its array to controlQueue. */
+	private static ByteBuffer controlFrame (byte type, int size)
+	{
+		ByteBuffer frame = ByteBuffer.allocate(2 + size);
+		frame.put((byte)0);
+		frame.put(type);
+		return frame;
+	}
+
+	/* wake up the carrier thread. a no-op in the carrier thread itself
+	 * because it is going to look at its state before selecting again. */
+	private void wakeup ()
+	{
+		if (Thread.currentThread() != carrierThread)
+			selector.wakeup();
+	}
+
 	/* must only be called in Carrier thread */
 	private void closeAllChannels ()
 	{
-		for (int cid = 1; cid <= 126; cid ++) {
-			if (slots[cid].state == STATE_CONNECTED) {
-				slots[cid].state = STATE_EMPTY;
-				slots[cid].channel.onTRDN();
-				slots[cid].channel = null;
+		carrierClosed = true; // also when the backend went away
+		throttledChannels.clear();
+		for (int page = 0; page < slotPages.length(); page ++) {
+			Slot [] slots = slotPages.get(page);
+			if (slots == null)
+				continue;
+			for (Slot slot : slots) {
+				if (slot.casState(STATE_CONNECTED, STATE_EMPTY)) {
+					slot.channel.abort();
+					freeSlot(slot);
+				} else if (isOurId(slot.id) && slot.state == STATE_CONNECTING) {
+					// our CON1 is unanswered
+					dropConnecting(slot, REASON_CARRIER_CLOSED);
+				} else if (slot.state == STATE_CONNECTING) {
+					// the peer's CON1, ChannelRunner gives up once carrierClosed
+					synchronized (slot) {
+						dropEarlyData(slot);
+					}
+				}
 			}
 		}
+		// channels draining after a TRDN have no slot any more
+		for (SelectionKey key : selector.keys())
+			if (key.attachment() instanceof TChannel)
+				((TChannel)key.attachment()).abort();
 		try {
 			selector.close();
-			backsock.close();
+			backend.close();
 		} catch (Exception x) {}
 	}
 
@@ -321,6 +986,8 @@ public class Carrier implements Runnable {
 					case CTRL_PING: finished = processPING(); break;
 					case CTRL_PONG: finished = processPONG(); break;
 					case CTRL_PADD: finished = processPADD(); break;
+					case CTRL_PRIO: finished = processPRIO(); break;
+					case CTRL_CAPS: finished = processCAPS(); break;
 					default: throw new CarrierProtocolException("unknow control message " + cid);
 				}
 			} else {
@@ -339,46 +1006,88 @@ public class Carrier implements Runnable {
 	private boolean processDATA (int cid) throws CarrierProtocolException
 	{
 		boolean hasData = cid >= 128;
+		int headerSize = 4;
 		cid = cid % 128;
+		if (cid == EXTENDED_ID) {
+			cid = getExtendedChannelId();
+			if (cid == 0 || !recvbuf.hasRemaining())
+				return false;
+			headerSize = 6;
+		}
 		int ack = recvbuf.get() & 0xff;
+		/* a channel is CONNECTED only once its TChannel is there. if the
+		 * state changes after we look, the channel is closing and ignores
+		 * what we give it. */
+		Slot slot = findSlot(cid);
 		if (!hasData) {
-			// FIXME race condition
-			if (slots[cid].state == STATE_CONNECTED) {
-				assert slots[cid].channel != null;
-				slots[cid].channel.onAck(ack * ACK_UNIT);
-			}
+			if (slot != null && slot.state == STATE_CONNECTED)
+				slot.channel.onAck(ack * ACK_UNIT);
 			return true;
 		}
-		if (recvbuf.remaining() < 3)
+		if (recvbuf.remaining() < 2)
 			return false;
 		int size = recvbuf.getShort();
-		if (size < 1 || size > MAX_DATASIZE)
+		if (size < 1 || size > MAX_MESSAGESIZE - headerSize)
 			throw new CarrierProtocolException("bad DATA size " + size);
 		if (recvbuf.remaining() < size)
 			return false;
-		// FIXME race condition
-		if (slots[cid].state == STATE_CONNECTED) {
-			assert slots[cid].channel != null;
-			slots[cid].channel.onDATA(recvbuf.array(), recvbuf.position(), size, ack * ACK_UNIT);
+		if (slot != null && slot.state == STATE_CONNECTED) {
+			slot.channel.onDATA(recvbuf.array(), recvbuf.position(), size, ack * ACK_UNIT);
+		} else if (slot != null && slot.state == STATE_CONNECTING && !isOurId(cid) &&
+				earlyDataEnabled) {
+			processEarlyData(slot, size);
 		}
+		// else DATA of a rejected channel that sent early data
 		recvbuf.position(recvbuf.position() + size);
 		return true;
 	}
 
+	/* DATA of a peer's channel whose target the Connector is connecting.
+	 * it has no window yet, only EARLY_DATA_CREDIT, and nothing to ack. */
+	private void processEarlyData (Slot slot, int size) throws CarrierProtocolException
+	{
+		TChannel channel;
+		synchronized (slot) {
+			channel = slot.channel;
+			if (channel == null) {
+				if (slot.state != STATE_CONNECTING) // the connect failed meanwhile
+					return;
+				if (slot.early == null) {
+					// the peer was given the credit, so it can't fail like tryReserve()
+					memory.reserve(EARLY_DATA_CREDIT);
+					slot.early = ByteBuffer.allocate(EARLY_DATA_CREDIT);
+				}
+				if (slot.early.remaining() < size)
+					throw new CarrierProtocolException("early data beyond credit, cid=" + slot.id);
+				slot.early.put(recvbuf.array(), recvbuf.position(), size);
+				return;
+			}
+		}
+		// ChannelRunner has just made the channel
+		channel.onDATA(recvbuf.array(), recvbuf.position(), size, 0);
+	}
+
+	/* give back the memory of a peer channel's early data that nothing
+	 * took. must hold the slot's lock. */
+	private void dropEarlyData (Slot slot)
+	{
+		if (slot.early != null) {
+			slot.early = null;
+			memory.release(EARLY_DATA_CREDIT);
+		}
+	}
+
 	private boolean processCON1 () throws CarrierProtocolException
 	{
-		if (recvbuf.remaining() < 4)
+		int cid = getChannelId();
+		if (cid == 0 || recvbuf.remaining() < 3)
 			return false;
-		int cid = recvbuf.get() & 0xff;
-		if (isMajor) {
-			if (cid < 1 || cid > 63)
-				throw new CarrierProtocolException("incorrect cid=" + cid + " for remote minor");
-		} else {
-			if (cid < 64 || cid > 126)
-				throw new CarrierProtocolException("incorrect cid=" + cid + " for remote major");
-		}
-		if (slots[cid].state != STATE_EMPTY)
-			throw new CarrierProtocolException("received CON1 while state=" + slots[cid].state);
+		if (isOurId(cid))
+			throw new CarrierProtocolException("incorrect cid=" + cid + " for remote " +
+					(isMajor ? "minor" : "major"));
+		if (slot(cid).state != STATE_EMPTY)
+			throw new CarrierProtocolException("received CON1 while state=" + slot(cid).state);
+		// the slot stays EMPTY while we parse, nobody else touches a peer's ID
 		int peerRecvbufSize = (recvbuf.getShort() & 0xffff) * ACK_UNIT;
 		int targetType = recvbuf.get() & 0xff;
 		int targetPort;
@@ -398,7 +1107,13 @@ public class Carrier implements Runnable {
 			if (recvbuf.remaining() < 2+16)
 				return false;
 			targetPort = recvbuf.getShort() & 0xffff;
-			targetAddr = null; //TODO
+			byte [] ipv6Arr = new byte[16];
+			recvbuf.get(ipv6Arr);
+			try {
+				targetAddr = java.net.InetAddress.getByAddress(ipv6Arr).getHostAddress();
+			} catch (java.net.UnknownHostException x) {
+				throw new RuntimeException(x); // not with 16 bytes
+			}
 			break;
 		case 2:
 			if (recvbuf.remaining() < 4)
@@ -424,65 +1139,105 @@ public class Carrier implements Runnable {
 		}
 
 		// TODO check targetAddress
-		slots[cid].state = STATE_CONNECTING;
+		if (targetAddr == null) {
+			LOG.warning("unsupported target type " + targetType + " cid=" + cid);
+			queueCON2(cid, REASON_NOT_ALLOWED, 0);
+			return true;
+		}
+		Slot slot = slot(cid);
+		slot.channel = null;
+		slot.early = null;
+		slot.hasData = false;
+		slot.weight = DEFAULT_WEIGHT;
+		slot.priority = DEFAULT_PRIORITY;
+		slot.state = STATE_CONNECTING;
+		channelCount.incrementAndGet();
 		ChannelRunner crunner = new ChannelRunner(cid, targetAddr, targetPort, peerRecvbufSize);
-		crunner.start();
+		(connector != null ? connector : Connector.global()).connect(targetAddr, targetPort, crunner);
 		return true;
 	}
 
 	private boolean processCON2 () throws CarrierProtocolException
 	{
-		if (recvbuf.remaining() < 2)
+		int cid = getChannelId();
+		if (cid == 0 || recvbuf.remaining() < 1)
 			return false;
-		int cid = recvbuf.get() & 0xff;
-		if (!isMajor) {
-			if (cid < 1 || cid > 63)
-				throw new CarrierProtocolException("CON2 incorrect cid=" + cid + " for my minor");
-		} else {
-			if (cid < 64 || cid > 126)
-				throw new CarrierProtocolException("CON2 incorrect cid=" + cid + " for my major");
-		}
-		if (slots[cid].state != STATE_CONNECTING)
-			throw new CarrierProtocolException("received CON2 while state=" + slots[cid].state);
-		assert slots[cid].socket != null;
+		if (!isOurId(cid))
+			throw new CarrierProtocolException("CON2 incorrect cid=" + cid + " for my " +
+					(isMajor ? "major" : "minor"));
+		Slot slot = findSlot(cid);
+		if (slot == null || slot.state != STATE_CONNECTING)
+			throw new CarrierProtocolException("received CON2 while state=" +
+					(slot == null ? STATE_EMPTY : slot.state));
 		int reason = recvbuf.get() & 0xff;
 		if (reason != 0) {
 			LOG.warning("peer rejected channel " + cid + ", reason: " + reason);
-			try {slots[cid].socket.close();} catch (Exception x) {}
-			slots[cid].socket = null;
-			slots[cid].state = STATE_EMPTY;
+			dropConnecting(slot, reason);
 			return true;
 		}
 		if (recvbuf.remaining() < 2)
 			return false;
 		int peerRecvbufSize = (recvbuf.getShort() & 0xffff) * ACK_UNIT;
-		slots[cid].state = STATE_CONNECTED;
-		slots[cid].channel = new TChannel(
+		if (slot.channel != null) {
+			// it has been sending early data
+			if (peerRecvbufSize < EARLY_DATA_CREDIT)
+				throw new CarrierProtocolException("CON2 window " + peerRecvbufSize +
+						" below early data credit");
+			slot.channel.onConnected(peerRecvbufSize);
+			slot.state = STATE_CONNECTED;
+			// see channelClose()
+			if (slot.closePending && slot.casState(STATE_CONNECTED, STATE_TEARING))
+				queueTRDN(cid);
+			return true;
+		}
+		assert slot.socket != null;
+		if (slot.listener != null) {
+			// before the channel relays anything on the socket
+			try {
+				slot.listener.connected(slot.socket);
+			} catch (Exception x) {
+				LOG.log(Level.WARNING, "ConnectListener error cid=" + cid, x);
+			}
+			slot.listener = null;
+		}
+		if (slot.firstData != null && peerRecvbufSize < slot.firstData.remaining())
+			throw new CarrierProtocolException("CON2 window " + peerRecvbufSize +
+					" below the channel's first data");
+		TChannel channel = new TChannel(
 				Carrier.this, cid,
-				CHANNEL_SENDBUF_SIZE, CHANNEL_RECVBUF_SIZE,
-				peerRecvbufSize, slots[cid].socket);
-		slots[cid].socket = null;
-		new Thread(slots[cid].channel, "C" + cid).start();
+				CHANNEL_SENDBUF_SIZE, slot.window,
+				peerRecvbufSize, slot.socket);
+		slot.channel = channel;
+		slot.socket = null;
+		slot.state = STATE_CONNECTED;
+		if (slot.firstData != null) {
+			channel.sendFirst(slot.firstData);
+			slot.firstData = null;
+		}
+		if (channelExecutor != null)
+			channel.start(channelExecutor);
+		else
+			channel.register(selector);
 		return true;
 	}
 
 	private boolean processTRDN () throws CarrierProtocolException
 	{
-		if (recvbuf.remaining() < 1)
+		int cid = getChannelId();
+		if (cid == 0)
 			return false;
-		int cid = recvbuf.get() & 0xff;
-		if (slots[cid].state == STATE_TEARING) {
-			slots[cid].state = STATE_EMPTY;
-		} else if (slots[cid].state == STATE_CONNECTED) {
-			slots[cid].channel.onTRDN();
-			slots[cid].state = STATE_EMPTY;
-			synchronized (controlSendbuf) {
-				controlSendbuf.put((byte)0);
-				controlSendbuf.put(CTRL_TRDN);
-				controlSendbuf.put((byte)cid);
-			}
+		Slot slot = findSlot(cid);
+		if (slot == null)
+			throw new CarrierProtocolException("received TRDN at state " + STATE_EMPTY);
+		// the local side may be closing the channel at the same time
+		if (slot.casState(STATE_TEARING, STATE_EMPTY)) {
+			freeSlot(slot);
+		} else if (slot.casState(STATE_CONNECTED, STATE_EMPTY)) {
+			slot.channel.onTRDN();
+			queueTRDN(cid);
+			freeSlot(slot);
 		} else {
-			throw new CarrierProtocolException("received TRDN at state " + slots[cid].state);
+			throw new CarrierProtocolException("received TRDN at state " + slot.state);
 		}
 		return true;
 	}
@@ -494,12 +1249,10 @@ public class Carrier implements Runnable {
 		int nonce = recvbuf.getInt();
 		long peerts = recvbuf.getLong();
 		long myts = System.currentTimeMillis();
-		synchronized (controlSendbuf) {
-			controlSendbuf.put((byte)0);
-			controlSendbuf.put(CTRL_PONG);
-			controlSendbuf.putInt(nonce);
-			controlSendbuf.putLong(myts);
-		}
+		ByteBuffer frame = controlFrame(CTRL_PONG, 12);
+		frame.putInt(nonce);
+		frame.putLong(myts);
+		controlQueue.add(frame.array());
 		LOG.fine("received ping nonce=" + nonce + ", peerts=" + peerts + ", myts" + myts);
 		return true;
 	}
@@ -512,9 +1265,35 @@ public class Carrier implements Runnable {
 		long peerts = recvbuf.getLong();
 		long myts = System.currentTimeMillis();
 		LOG.fine("received pong nonce=" + nonce + ", peerts=" + peerts + ", myts" + myts);
+		pingUnansweredNanos = 0; // the peer is there, even if this is an old one
+		if (pingSentNanos != 0 && nonce == pingNonce) {
+			long sample = System.nanoTime() - pingSentNanos;
+			pingSentNanos = 0;
+			updateRtt(sample);
+		}
 		return true;
 	}
 
+	/* same smoothing as TCP's SRTT and RTTVAR */
+	private void updateRtt (long sample)
+	{
+		if (sample <= 0)
+			sample = 1;
+		if (rttSamples == 0) {
+			rttNanos = sample;
+			rttVarNanos = sample / 2;
+			minRttNanos = sample;
+		} else {
+			rttVarNanos = (rttVarNanos * 3 + Math.abs(rttNanos - sample)) / 4;
+			rttNanos = (rttNanos * 7 + sample) / 8;
+			minRttNanos = Math.min(minRttNanos, sample);
+		}
+		lastRttNanos = sample;
+		rttSamples ++;
+		LOG.fine("rtt sample " + sample / 1000 + "us, srtt=" + rttNanos / 1000 +
+				"us, rttvar=" + rttVarNanos / 1000 + "us");
+	}
+
 	private boolean processPADD () throws CarrierProtocolException
 	{
 		if (recvbuf.remaining() < 1)
@@ -530,6 +1309,136 @@ public class Carrier implements Runnable {
 		return true;
 	}
 
+	private boolean processPRIO () throws CarrierProtocolException
+	{
+		int cid = getChannelId();
+		if (cid == 0 || recvbuf.remaining() < 2)
+			return false;
+		int priority = recvbuf.get() & 0xff;
+		int weight = recvbuf.get() & 0xff;
+		if (priority != PRIORITY_INTERACTIVE && priority != PRIORITY_BULK)
+			throw new CarrierProtocolException("PRIO unknown priority " + priority);
+		if (weight < 1)
+			throw new CarrierProtocolException("PRIO bad weight " + weight);
+		// only the creator of a channel sets its priority
+		if (isOurId(cid))
+			throw new CarrierProtocolException("PRIO incorrect cid=" + cid + " for remote " +
+					(isMajor ? "minor" : "major"));
+		// PRIO follows CON1 immediately. the channel may be gone already.
+		Slot slot = findSlot(cid);
+		if (slot != null && (slot.state == STATE_CONNECTING || slot.state == STATE_CONNECTED)) {
+			slot.priority = priority;
+			slot.weight = weight;
+		}
+		return true;
+	}
+
+	private boolean processCAPS () throws CarrierProtocolException
+	{
+		if (recvbuf.remaining() < 2)
+			return false;
+		int caps = recvbuf.getShort() & 0xffff;
+		// unknown bits are for future versions, ignore them
+		if ((caps & CAP_EXTENDED_IDS) != 0 && extendedIdsEnabled) {
+			LOG.fine("peer takes extended channel IDs");
+			peerExtendedIds = true;
+		}
+		if ((caps & CAP_EARLY_DATA) != 0 && earlyDataEnabled) {
+			LOG.fine("peer takes early data");
+			peerEarlyData = true;
+		}
+		return true;
+	}
+
+	/* read a channel ID field from recvbuf.
+	 * return 0 if recvbuf doesn't hold all of it yet. */
+	private int getChannelId () throws CarrierProtocolException
+	{
+		if (!recvbuf.hasRemaining())
+			return 0;
+		int cid = recvbuf.get() & 0xff;
+		if (cid != EXTENDED_ID) {
+			if (cid < 1 || cid > 126)
+				throw new CarrierProtocolException("bad cid=" + cid);
+			return cid;
+		}
+		return getExtendedChannelId();
+	}
+
+	/* read the 2 byte ID after an EXTENDED_ID byte, 0 if not there yet */
+	private int getExtendedChannelId () throws CarrierProtocolException
+	{
+		// only a peer we offered CAP_EXTENDED_IDS may use them
+		if (!extendedIdsEnabled)
+			throw new CarrierProtocolException("extended cid not negotiated");
+		if (recvbuf.remaining() < 2)
+			return 0;
+		int cid = recvbuf.getShort() & 0xffff;
+		if (cid < 128)
+			throw new CarrierProtocolException("bad extended cid=" + cid);
+		return cid;
+	}
+
+	private static int channelIdSize (int cid)
+	{
+		return cid < 128 ? 1 : 3;
+	}
+
+	private static void putChannelId (ByteBuffer buf, int cid)
+	{
+		if (cid < 128) {
+			buf.put((byte)cid);
+		} else {
+			buf.put((byte)EXTENDED_ID);
+			buf.putShort((short)cid);
+		}
+	}
+
+	/* the channel ID of the index'th ID we may create */
+	private int channelIdOf (int index)
+	{
+		if (index < LEGACY_IDS)
+			return (isMajor ? 64 : 1) + index;
+		return (isMajor ? 129 : 128) + (index - LEGACY_IDS) * 2;
+	}
+
+	private int channelIndexOf (int cid)
+	{
+		if (cid < 128)
+			return cid - (isMajor ? 64 : 1);
+		return LEGACY_IDS + (cid - 128) / 2;
+	}
+
+	/* whether we create channel cid, as opposed to the peer */
+	private boolean isOurId (int cid)
+	{
+		if (cid < 128)
+			return isMajor ? cid >= 64 : cid < 64;
+		return (cid & 1) == (isMajor ? 1 : 0);
+	}
+
+	/* the slot of cid, which must be in [1, MAX_CHANNEL_ID] */
+	private Slot slot (int cid)
+	{
+		Slot [] page = slotPages.get(cid / SLOT_PAGE_SIZE);
+		if (page == null) {
+			page = new Slot [SLOT_PAGE_SIZE];
+			int first = cid / SLOT_PAGE_SIZE * SLOT_PAGE_SIZE;
+			for (int i = 0; i < SLOT_PAGE_SIZE; i ++)
+				page[i] = new Slot(first + i, STATE_EMPTY);
+			if (!slotPages.compareAndSet(cid / SLOT_PAGE_SIZE, null, page))
+				page = slotPages.get(cid / SLOT_PAGE_SIZE);
+		}
+		return page[cid % SLOT_PAGE_SIZE];
+	}
+
+	/* the slot of cid, or null if cid has never been used and so is EMPTY */
+	private Slot findSlot (int cid)
+	{
+		Slot [] page = slotPages.get(cid / SLOT_PAGE_SIZE);
+		return page == null ? null : page[cid % SLOT_PAGE_SIZE];
+	}
+
 	/* precondition:
 	 *   sendbuf's position is the next free space
 	 *   recvbuf's limit = capacity
@@ -544,29 +1453,24 @@ public class Carrier implements Runnable {
 
 		int mark = sendbuf.position();
 
-		synchronized (controlSendbuf) {
-			if (controlSendbuf.position() > 0) {
-				controlSendbuf.flip();
-				if (sendbuf.remaining() >= controlSendbuf.remaining())
-					sendbuf.put(controlSendbuf);
-				else {
-					int size = sendbuf.remaining();
-					sendbuf.put(controlSendbuf.array(), controlSendbuf.position(), size);
-					controlSendbuf.position(controlSendbuf.position() + size);
-				}
-				controlSendbuf.compact();
-			}
+		// the rest wait for the next sendbuf chunk. the DATA below
+		// needs more room than any control message, so it waits too.
+		byte [] frame;
+		while ((frame = controlQueue.peek()) != null && sendbuf.remaining() >= frame.length) {
+			controlQueue.poll();
+			sendbuf.put(frame);
 		}
 
 		if (sendbuf.remaining() >= MAX_MESSAGESIZE) {
-			for (int cid = 1; cid <= 126; cid ++) {
-				if (slots[cid].state == STATE_CONNECTED && slots[cid].hasAck) {
-					slots[cid].hasAck = false;
-					int ack = slots[cid].channel.sendAckToCarrier();
-					if (ack > 0) {
-						sendbuf.put((byte)cid);
-						sendbuf.put((byte)ack);
-					}
+			Slot slot;
+			while (sendbuf.remaining() >= 4 && (slot = ackQueue.poll()) != null) {
+				slot.inAckQueue.set(false);
+				if (slot.state != STATE_CONNECTED)
+					continue;
+				int ack = slot.channel.sendAckToCarrier();
+				if (ack > 0) {
+					putChannelId(sendbuf, slot.id);
+					sendbuf.put((byte)ack);
 				}
 			}
 		}
@@ -575,164 +1479,333 @@ public class Carrier implements Runnable {
 			LOG.finest("SEND: " + HexEncoding.bytesToString(sendbuf.array(),
 						mark, sendbuf.position() - mark));
 
-		while (sendbuf.remaining() >= MAX_MESSAGESIZE && hasAnyData) {
-			int cid = 0;
-			if (rand.nextBoolean()) {
-				for (int i = 1; i <= 126; i ++)
-					if (slots[i].state == STATE_CONNECTED && slots[i].hasData) {
-						cid = i;
-						break;
-					}
-			} else {
-				for (int i = 126; i >= 1; i --)
-					if (slots[i].state == STATE_CONNECTED && slots[i].hasData) {
-						cid = i;
-						break;
-					}
-			}
-			if (cid == 0) {
-				hasAnyData = false;
+		long now = System.nanoTime();
+		if (dataResumeNanos != 0 && dataResumeNanos - now > 0)
+			return;
+		dataResumeNanos = 0;
+		while (sendbuf.remaining() >= MAX_MESSAGESIZE) {
+			Queue<Slot> queue = interactiveQueue.isEmpty() ||
+				(interactiveRun >= INTERACTIVE_MAX_RUN && !bulkQueue.isEmpty()) ?
+				bulkQueue : interactiveQueue;
+			Slot slot = queue.peek();
+			if (slot == null)
 				break;
+			long delay = Math.max(rateLimit.delayNanos(now), sharedRateLimit.delayNanos(now));
+			if (delay > 0) {
+				dataResumeNanos = now + delay;
+				break;
+			}
+			if (!slot.canSend()) {
+				slot.hasData = false;
+				leaveReadyQueue(slot, queue);
+				continue;
 			}
-			slots[cid].hasData = false;
-			slots[cid].hasAck = false;
+			// a channel gets a quantum each time it comes to the head
+			if (slot.deficit <= 0)
+				slot.deficit += DRR_QUANTUM * slot.weight;
+			// extended IDs take 2 more bytes of header
+			int headerSize = 3 + channelIdSize(slot.id);
+			int max = Math.min(slot.deficit, MAX_MESSAGESIZE - headerSize);
+			if (slot.priority == PRIORITY_INTERACTIVE)
+				lastInteractiveNanos = System.nanoTime();
+			else if (max > BULK_MAX_DATASIZE &&
+					System.nanoTime() - lastInteractiveNanos < INTERACTIVE_HOLD_NS)
+				max = BULK_MAX_DATASIZE;
+			slot.hasData = false;
 			int position = sendbuf.position();
-			sendbuf.position(position + 4);
-			int size = slots[cid].channel.sendToCarrier(sendbuf);
+			sendbuf.position(position + headerSize);
+			// sendToCarrier() sets hasData again if it leaves data behind
+			int size = slot.channel.sendToCarrier(sendbuf, max);
 			if (size == 0) { // this happens
 				sendbuf.position(position);
-				continue;
+			} else {
+				slot.deficit -= size;
+				interactiveRun = queue == interactiveQueue ? interactiveRun + 1 : 0;
+				rateLimit.take(size);
+				sharedRateLimit.take(size);
+				int ack = slot.channel.sendAckToCarrier();
+				int position2 = sendbuf.position();
+				assert position2 == position + headerSize + size;
+				sendbuf.position(position);
+				putChannelId(sendbuf, slot.id);
+				sendbuf.put(position, (byte)(sendbuf.get(position) | 0x80));
+				sendbuf.put((byte)ack);
+				sendbuf.putShort((short)size);
+				sendbuf.position(position2);
+				if (LOGTRAFFIC)
+					LOG.finest("SEND DATA " +
+							HexEncoding.bytesToString(sendbuf.array(), position, headerSize) +
+							" " + size);
+			}
+			if (!slot.hasData) {
+				leaveReadyQueue(slot, queue);
+			} else if (slot.deficit <= 0) {
+				// used up its quantum, go to the back
+				queue.poll();
+				queue.add(slot);
 			}
-			int ack = slots[cid].channel.sendAckToCarrier();
-			int position2 = sendbuf.position();
-			assert position2 > position + 4;
-			sendbuf.put(position+0, (byte)(128 + cid));
-			sendbuf.put(position+1, (byte)ack);
-			sendbuf.putShort(position+2, (short)(position2 - position - 4));
-			if (LOGTRAFFIC)
-				LOG.finest("SEND DATA " +
-						HexEncoding.bytesToString(sendbuf.array(), position, 4) +
-						" " + (position2 - position - 4));
 		}
 	}
 
+	private Queue<Slot> readyQueue (Slot slot)
+	{
+		return slot.priority == PRIORITY_INTERACTIVE ? interactiveQueue : bulkQueue;
+	}
+
+	/* remove slot, which must be the head, from its ready queue */
+	private void leaveReadyQueue (Slot slot, Queue<Slot> queue)
+	{
+		Slot head = queue.poll();
+		assert head == slot;
+		slot.deficit = 0;
+		slot.inReadyQueue.set(false);
+		// channelSend() may have come in between
+		if (slot.hasData && slot.inReadyQueue.compareAndSet(false, true))
+			readyQueue(slot).add(slot);
+	}
+
 	/* called by channel in channel thread to indicate local socket initiated close */
 	void channelClose (int channelID)
 	{
-		assert slots[channelID].state != STATE_EMPTY && slots[channelID].state != STATE_CONNECTING;
-		if (slots[channelID].state == STATE_CONNECTED) { // TODO: race condition
-			slots[channelID].state = STATE_TEARING;
-			synchronized (controlSendbuf) {
-				controlSendbuf.put((byte)0);
-				controlSendbuf.put(CTRL_TRDN);
-				controlSendbuf.put((byte)channelID);
+		Slot slot = slot(channelID);
+		// nothing to do if the peer has torn it down meanwhile
+		if (slot.casState(STATE_CONNECTED, STATE_TEARING)) {
+			queueTRDN(channelID);
+			wakeup();
+		} else if (slot.state == STATE_CONNECTING) {
+			/* a channel sending early data closed before the CON2. the
+			 * TRDN may only go after it, processCON2() sends it unless
+			 * the state has changed before it could see closePending. */
+			slot.closePending = true;
+			if (slot.casState(STATE_CONNECTED, STATE_TEARING)) {
+				queueTRDN(channelID);
+				wakeup();
 			}
-			selector.wakeup();
 		}
 	}
 
+	/* a CON2 with reason; the window goes only with reason 0 */
+	private void queueCON2 (int cid, int reason, int window)
+	{
+		ByteBuffer frame = controlFrame(CTRL_CON2, channelIdSize(cid) + (reason == 0 ? 3 : 1));
+		putChannelId(frame, cid);
+		frame.put((byte)reason);
+		if (reason == 0)
+			frame.putShort((short)(window / ACK_UNIT));
+		controlQueue.add(frame.array());
+	}
+
+	private void queueTRDN (int cid)
+	{
+		ByteBuffer frame = controlFrame(CTRL_TRDN, channelIdSize(cid));
+		putChannelId(frame, cid);
+		controlQueue.add(frame.array());
+	}
+
+	/* called after slot has become EMPTY. make its ID available again if
+	 * it is one of ours. */
+	private void freeSlot (Slot slot)
+	{
+		slot.channel = null;
+		channelCount.decrementAndGet();
+		if (isOurId(slot.id))
+			channelIds.release(channelIndexOf(slot.id));
+	}
+
 	/* called by channel in channel thread to indicate more data */
 	void channelSend (int channelID)
 	{
-		assert slots[channelID].state == STATE_CONNECTED;
-		slots[channelID].hasData = true;
-		hasAnyData = true;
-		selector.wakeup();
+		Slot slot = slot(channelID);
+		if (!slot.canSend()) // torn down meanwhile
+			return;
+		slot.hasData = true;
+		if (slot.inReadyQueue.compareAndSet(false, true))
+			readyQueue(slot).add(slot);
+		wakeup();
 	}
 
 	/* called by channel in channel thread to indicate that it want to send ack */
 	void channelSendAck (int channelID)
 	{
-		assert slots[channelID].state == STATE_CONNECTED;
-		slots[channelID].hasAck = true;
-		selector.wakeup();
+		Slot slot = slot(channelID);
+		if (slot.state != STATE_CONNECTED) // torn down meanwhile
+			return;
+		if (slot.inAckQueue.compareAndSet(false, true))
+			ackQueue.add(slot);
+		wakeup();
+	}
+
+	/* The rest of this section is for the benchmarks in bench/, which run
+	 * the data path in the calling thread without a backend, a selector
+	 * loop or local sockets. */
+
+	/* put a CONNECTED channel without local socket in slot cid, as if
+	 * CON1 and CON2 had gone by. see TChannel.readFrom() and writeTo() */
+	TChannel benchConnect (int cid, int peerWindow)
+	{
+		carrierThread = Thread.currentThread();
+		Slot slot = slot(cid);
+		assert slot.state == STATE_EMPTY;
+		slot.window = reserveInitialWindow();
+		slot.channel = new TChannel(this, cid, CHANNEL_SENDBUF_SIZE, slot.window,
+				peerWindow, null);
+		slot.state = STATE_CONNECTED;
+		channelCount.incrementAndGet();
+		return slot.channel;
+	}
+
+	/* run fillSendbuf() on an empty sendbuf and return it, its position
+	 * at the end of the plaintext */
+	ByteBuffer benchFillSendbuf ()
+	{
+		carrierThread = Thread.currentThread();
+		sendbuf.clear();
+		fillSendbuf();
+		return sendbuf;
 	}
 
+	/* run processRecvbuf() on size bytes of decrypted backend traffic,
+	 * which must hold whole messages */
+	void benchProcessRecvbuf (byte [] plaintext, int offset, int size)
+		throws CarrierProtocolException
+	{
+		carrierThread = Thread.currentThread();
+		recvbuf.clear();
+		recvbuf.put(plaintext, offset, size);
+		recvbuf.flip();
+		processRecvbuf();
+		assert !recvbuf.hasRemaining();
+		recvbuf.clear();
+	}
+
+	private static final AtomicIntegerFieldUpdater<Slot> SLOT_STATE =
+		AtomicIntegerFieldUpdater.newUpdater(Slot.class, "state");
+
+	/* state goes EMPTY -> CONNECTING -> CONNECTED -> TEARING -> EMPTY, or
+	 * from CONNECTING or CONNECTED straight back to EMPTY. The transitions
+	 * out of CONNECTED can race between the carrier thread and the channel,
+	 * so they use casState(). The others happen in whichever thread owns
+	 * the slot at the time: the creator of an EMPTY slot, and the carrier
+	 * or ChannelRunner for a CONNECTING one. channel is set before state
+	 * becomes CONNECTED. */
 	class Slot {
 		final int id;
-		int state;
-		TChannel channel;
-		boolean hasAck;
-		boolean hasData;
+		volatile int state;
+		volatile TChannel channel;
+		volatile boolean hasData;
+		final AtomicBoolean inReadyQueue = new AtomicBoolean(false);
+		final AtomicBoolean inAckQueue = new AtomicBoolean(false);
+		int weight = DEFAULT_WEIGHT;
+		volatile int priority = DEFAULT_PRIORITY;
+		int deficit; // DRR deficit counter in bytes, only used by carrier thread
 		SocketChannel socket; // only for local initiated channel
+		ConnectListener listener; // only for local initiated channel, may be null
+		ByteBuffer firstData; // only for local initiated channel, may be null
+		int window; // receive window reserved for local initiated channel
+		// the channel closed while sending early data, see channelClose()
+		volatile boolean closePending;
+		// early data of a peer's channel before its target is connected, guarded by this
+		ByteBuffer early;
 
 		Slot (int id, int state)
 		{
 			this.id = id;
 			this.state = state;
 		}
+
+		boolean casState (int expect, int update)
+		{
+			return SLOT_STATE.compareAndSet(this, expect, update);
+		}
+
+		/* whether the channel may send DATA: it is connected, or it is
+		 * ours and sending early data */
+		boolean canSend ()
+		{
+			int s = state;
+			return s == STATE_CONNECTED || s == STATE_CONNECTING && channel != null;
+		}
 	}
 
-	class ChannelRunner extends Thread
+	/* makes the channel of a CON1 once the Connector has connected its
+	 * target, or rejects it. called in the connector thread. */
+	class ChannelRunner implements Connector.Callback
 	{
 		final int cid;
+		final Slot slot;
 		final String hostname;
 		final int port;
 		final int peerRecvbufSize;
 
 		ChannelRunner (int cid, String hostname, int port, int peerRecvbufSize)
 		{
-			super("C" + cid);
 			this.cid = cid;
+			this.slot = slot(cid);
 			this.hostname = hostname;
 			this.port = port;
 			this.peerRecvbufSize = peerRecvbufSize;
 		}
 
 		@Override
-		public void run ()
+		public void connected (SocketChannel socket)
 		{
-			assert slots[cid].state == STATE_CONNECTING;
-			InetSocketAddress addr = new InetSocketAddress(hostname, port);
-			if (carrierClosed) return;
-			if (addr.isUnresolved()) {
-				assert slots[cid].state == STATE_CONNECTING;
-				slots[cid].state = STATE_EMPTY;
-				synchronized (controlSendbuf) {
-					controlSendbuf.put((byte)0);
-					controlSendbuf.put(CTRL_CON2);
-					controlSendbuf.put((byte)cid);
-					controlSendbuf.put((byte)2);
-				}
-				selector.wakeup();
+			if (carrierClosed) {
+				try {socket.close();} catch (Exception x) {}
 				return;
 			}
-			SocketChannel socket;
-			try {
-				socket = SocketChannel.open(addr);
-			} catch (IOException x) {
-				LOG.warning("error connecting " + hostname + ":" + port + " cid=" + cid);
-				assert slots[cid].state == STATE_CONNECTING;
-				slots[cid].state = STATE_EMPTY;
-				synchronized (controlSendbuf) {
-					controlSendbuf.put((byte)0);
-					controlSendbuf.put(CTRL_CON2);
-					controlSendbuf.put((byte)cid);
-					controlSendbuf.put((byte)2);
+			assert slot.state == STATE_CONNECTING;
+			int window = reserveInitialWindow();
+			TChannel channel = new TChannel(
+					Carrier.this, cid,
+					CHANNEL_SENDBUF_SIZE, window,
+					peerRecvbufSize, socket);
+			synchronized (slot) {
+				// early data the peer has sent so far, from now on processDATA() gives it the channel
+				if (slot.early != null) {
+					try {
+						channel.onDATA(slot.early.array(), 0, slot.early.position(), 0);
+					} catch (CarrierProtocolException x) {
+						throw new RuntimeException(x); // the window is at least the credit
+					}
+					dropEarlyData(slot); // the channel's window covers it now
 				}
-				selector.wakeup();
-				return;
+				// the peer may send DATA as soon as it has the CON2
+				slot.channel = channel;
 			}
-
+			slot.state = STATE_CONNECTED;
 			if (carrierClosed) {
-				try {socket.close();} catch (Exception x) {}
+				/* closeAllChannels() may have passed the slot while it was
+				 * still CONNECTING. whoever takes it from CONNECTED aborts */
+				if (slot.casState(STATE_CONNECTED, STATE_EMPTY)) {
+					channel.abort();
+					freeSlot(slot);
+				}
 				return;
 			}
-			assert slots[cid].state == STATE_CONNECTING;
-			slots[cid].state = STATE_CONNECTED;
-			synchronized (controlSendbuf) {
-				controlSendbuf.put((byte)0);
-				controlSendbuf.put(CTRL_CON2);
-				controlSendbuf.put((byte)cid);
-				controlSendbuf.put((byte)0);
-				controlSendbuf.putShort((short)(CHANNEL_RECVBUF_SIZE / ACK_UNIT));
+			queueCON2(cid, 0, window);
+			if (channelExecutor != null) {
+				selector.wakeup();
+				channel.start(channelExecutor);
+			} else {
+				pendingChannels.add(channel);
+				selector.wakeup();
 			}
-			slots[cid].channel = new TChannel(
-					Carrier.this, cid,
-					CHANNEL_SENDBUF_SIZE, CHANNEL_RECVBUF_SIZE,
-					peerRecvbufSize, socket);
+		}
+
+		@Override
+		public void failed (IOException x)
+		{
+			LOG.warning("error connecting " + hostname + ":" + port + " cid=" + cid + ": " + x);
+			if (carrierClosed)
+				return;
+			assert slot.state == STATE_CONNECTING;
+			synchronized (slot) {
+				dropEarlyData(slot);
+				slot.state = STATE_EMPTY;
+			}
+			freeSlot(slot);
+			queueCON2(cid, REASON_CONNECT_FAILED, 0);
 			selector.wakeup();
-			slots[cid].channel.run();
 		}
 	}
 }
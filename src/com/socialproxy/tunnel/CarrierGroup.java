@@ -0,0 +1,272 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/* Several carriers to the same peer, each on its own backend connection and
+ * its own thread. A channel lives on one carrier, but new channels are spread
+ * over all of them, so that the group isn't bound by one core doing the
+ * cipher or by one TCP congestion window, and a loss on one connection only
+ * stalls the channels on it.
+ * Carriers leave the group when their run() returns. With maintain(), the
+ * group dials replacements in the background, so a lost connection costs the
+ * channels that were on it, but not a handshake on the next new channel
+ * while other carriers are still up. */
+public class CarrierGroup
+{
+	/* opens a backend connection to the peer and makes a carrier on it */
+	public interface Dialer
+	{
+		Carrier dial () throws IOException;
+	}
+
+	private final static Logger LOG = Logger.getLogger(CarrierGroup.class.getName());
+	/* a new channel goes to the carrier with the fewest channels */
+	public static final int POLICY_LEAST_LOADED = 0;
+	/* a new channel goes to a carrier chosen by the address of its local
+	 * client, so that all connections of a client share a carrier and reach
+	 * the target in the order they were made */
+	public static final int POLICY_HASHED = 1;
+	/* failed dials, and carriers that die within STABLE_NS, are retried
+	 * after a backoff that doubles from MIN_BACKOFF_MS to MAX_BACKOFF_MS */
+	private static final long MIN_BACKOFF_MS = 500;
+	private static final long MAX_BACKOFF_MS = 60000;
+	private static final long STABLE_NS = 10000000000L;
+
+	private final String name;
+	private final List<Carrier> carriers = new CopyOnWriteArrayList<Carrier>();
+	private final AtomicInteger next = new AtomicInteger(0); // breaks ties round robin
+	private volatile int policy = POLICY_LEAST_LOADED;
+	private final Object lock = new Object(); // notified when carriers come or go
+	private boolean closed = false; // guarded by lock
+	private long backoffMs = 0; // guarded by lock
+	private boolean failedSinceDial = false; // guarded by lock
+
+	public CarrierGroup (String name)
+	{
+		this.name = name;
+	}
+
+	public void setPolicy (int policy)
+	{
+		if (policy != POLICY_LEAST_LOADED && policy != POLICY_HASHED)
+			throw new IllegalArgumentException("unknown policy " + policy);
+		this.policy = policy;
+	}
+
+	/* add carrier to the group and run it in a new thread. it leaves the
+	 * group when it stops. return the thread. */
+	public Thread start (final Carrier carrier)
+	{
+		synchronized (lock) {
+			carriers.add(carrier);
+			lock.notifyAll();
+		}
+		Thread thread = new Thread(name + " carrier") {
+			@Override
+			public void run ()
+			{
+				long startNanos = System.nanoTime();
+				try {
+					carrier.run();
+				} catch (RuntimeException x) {
+					LOG.log(Level.WARNING, name + " carrier failed", x);
+				} finally {
+					synchronized (lock) {
+						carriers.remove(carrier);
+						if (System.nanoTime() - startNanos >= STABLE_NS)
+							backoffMs = 0;
+						else
+							backOff();
+						lock.notifyAll();
+					}
+					LOG.info(name + " carrier gone, " + carriers.size() + " left");
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	/* keep size carriers in the group, dialing new ones with dialer in a
+	 * background thread whenever there are fewer, until close(). the
+	 * extra carriers are warm spares that also share the channels. */
+	public void maintain (final int size, final Dialer dialer)
+	{
+		Thread thread = new Thread(name + " dialer") {
+			@Override
+			public void run ()
+			{
+				try {
+					dialLoop(size, dialer);
+				} catch (InterruptedException x) {
+					LOG.info(name + " dialer interrupted");
+				}
+			}
+		};
+		thread.start();
+	}
+
+	private void dialLoop (int size, Dialer dialer) throws InterruptedException
+	{
+		while (true) {
+			long backoff;
+			synchronized (lock) {
+				while (!closed && carriers.size() >= size)
+					lock.wait();
+				if (closed)
+					return;
+				// the spares of a good dial follow right away
+				backoff = failedSinceDial ? backoffMs : 0;
+			}
+			if (backoff > 0) {
+				// jitter, so that many clients don't come back at the same time
+				long sleep = backoff / 2 + (long)(Math.random() * backoff);
+				LOG.info(name + " redialing in " + sleep + "ms");
+				Thread.sleep(sleep);
+			}
+			Carrier carrier;
+			try {
+				carrier = dialer.dial();
+			} catch (IOException x) {
+				LOG.warning(name + " dial failed: " + x);
+				synchronized (lock) {
+					backOff();
+				}
+				continue;
+			} catch (RuntimeException x) {
+				// such as UnresolvedAddressException, the dialer must go on
+				LOG.log(Level.WARNING, name + " dial failed", x);
+				synchronized (lock) {
+					backOff();
+				}
+				continue;
+			}
+			synchronized (lock) {
+				if (closed) {
+					carrier.close();
+					return;
+				}
+				failedSinceDial = false;
+			}
+			start(carrier);
+		}
+	}
+
+	/* must hold lock */
+	private void backOff ()
+	{
+		backoffMs = backoffMs == 0 ? MIN_BACKOFF_MS : Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+		failedSinceDial = true;
+	}
+
+	/* wait up to millis for a carrier to be in the group.
+	 * return whether there is one. */
+	public boolean awaitCarrier (long millis) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + millis * 1000000L;
+		synchronized (lock) {
+			long wait;
+			while (!closed && carriers.isEmpty() &&
+					(wait = (deadline - System.nanoTime()) / 1000000L) > 0)
+				lock.wait(wait);
+			return !carriers.isEmpty();
+		}
+	}
+
+	/* the carriers currently in the group */
+	public List<Carrier> getCarriers ()
+	{
+		return carriers;
+	}
+
+	public int size ()
+	{
+		return carriers.size();
+	}
+
+	/* create a channel on one of the carriers, see Carrier.createChannel().
+	 * if the chosen carrier can't take it, the others are tried. carriers
+	 * that aren't healthy are only used if no other one is. */
+	public boolean createChannel (SocketChannel socket, String peerAddr, int peerPort,
+			int weight, int priority)
+	{
+		return createChannel(socket, peerAddr, peerPort, weight, priority, null);
+	}
+
+	public boolean createChannel (SocketChannel socket, String peerAddr, int peerPort,
+			int weight, int priority, Carrier.ConnectListener listener)
+	{
+		return createChannel(socket, peerAddr, peerPort, weight, priority, listener, null);
+	}
+
+	public boolean createChannel (SocketChannel socket, String peerAddr, int peerPort,
+			int weight, int priority, Carrier.ConnectListener listener, ByteBuffer firstData)
+	{
+		Object [] snapshot = carriers.toArray();
+		if (snapshot.length == 0)
+			return false;
+		int first = policy == POLICY_HASHED ? hashIndex(socket, snapshot.length) :
+			leastLoadedIndex(snapshot);
+		for (int pass = 0; pass < 2; pass ++) {
+			for (int i = 0; i < snapshot.length; i ++) {
+				Carrier carrier = (Carrier)snapshot[(first + i) % snapshot.length];
+				if (pass == 0 ? !carrier.isHealthy() : carrier.isClosed() || carrier.isHealthy())
+					continue;
+				if (carrier.createChannel(socket, peerAddr, peerPort, weight, priority,
+						listener, firstData))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/* close all carriers and stop dialing. they leave the group as they stop. */
+	public void close ()
+	{
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		for (Carrier carrier : carriers)
+			carrier.close();
+	}
+
+	private int leastLoadedIndex (Object [] snapshot)
+	{
+		int start = Math.floorMod(next.getAndIncrement(), snapshot.length);
+		int best = start;
+		int bestCount = Integer.MAX_VALUE;
+		for (int i = 0; i < snapshot.length; i ++) {
+			int index = (start + i) % snapshot.length;
+			Carrier carrier = (Carrier)snapshot[index];
+			int count = carrier.isHealthy() ? carrier.getChannelCount() : Integer.MAX_VALUE;
+			if (count < bestCount) {
+				best = index;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+
+	private static int hashIndex (SocketChannel socket, int size)
+	{
+		int hash;
+		try {
+			InetSocketAddress addr = (InetSocketAddress)socket.getRemoteAddress();
+			hash = addr == null ? 0 : addr.getAddress().hashCode();
+		} catch (IOException x) {
+			hash = 0;
+		}
+		// hashCode() of an IPv4 address is the address itself, mix it
+		hash *= 0x9e3779b9;
+		return Math.floorMod(hash ^ (hash >>> 16), size);
+	}
+}
@@ -0,0 +1,43 @@
+package com.socialproxy.tunnel;
+
+/* A snapshot of what a carrier has measured about its backend connection,
+ * returned by Carrier.getStats().
+ * RTT comes from PING/PONG round trips and is smoothed like TCP does
+ * (RFC 6298); rttVar is the mean deviation of the samples, i.e. the
+ * jitter. The rates count encrypted bytes on the backend socket per second
+ * and are smoothed over a few ticks. Anything not measured yet is 0. */
+public final class CarrierStats
+{
+	public final long srttNanos;
+	public final long rttVarNanos;
+	public final long minRttNanos;
+	public final long lastRttNanos;
+	public final long rttSamples;
+	public final long bytesSent;
+	public final long bytesReceived;
+	public final long sendRate; // bytes per second
+	public final long recvRate; // bytes per second
+
+	CarrierStats (long srttNanos, long rttVarNanos, long minRttNanos, long lastRttNanos,
+			long rttSamples, long bytesSent, long bytesReceived, long sendRate, long recvRate)
+	{
+		this.srttNanos = srttNanos;
+		this.rttVarNanos = rttVarNanos;
+		this.minRttNanos = minRttNanos;
+		this.lastRttNanos = lastRttNanos;
+		this.rttSamples = rttSamples;
+		this.bytesSent = bytesSent;
+		this.bytesReceived = bytesReceived;
+		this.sendRate = sendRate;
+		this.recvRate = recvRate;
+	}
+
+	@Override
+	public String toString ()
+	{
+		return String.format("rtt=%.1fms rttvar=%.1fms minrtt=%.1fms samples=%d " +
+				"sent=%d recv=%d sendrate=%dB/s recvrate=%dB/s",
+				srttNanos / 1e6, rttVarNanos / 1e6, minRttNanos / 1e6, rttSamples,
+				bytesSent, bytesReceived, sendRate, recvRate);
+	}
+}
@@ -2,11 +2,14 @@ package com.socialproxy.tunnel;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,20 +17,75 @@ public class CarrierTool {
 	private static final byte[] KEY_S2C = "1234567890123456".getBytes();
 	private static final byte[] KEY_C2S = "client to server".getBytes();
 	private final static Logger LOG = Logger.getLogger(CarrierTool.class.getName());
-	private static Carrier carrier;
+	static final CarrierGroup carriers = new CarrierGroup("peer");
+	private static Executor channelExecutor; // null means event loop
+	private static final int SEND_BATCH = Integer.getInteger("socialproxy.sendbatch", Carrier.DEFAULT_SEND_BATCH);
+	private static final long RATE_LIMIT = Long.getLong("socialproxy.ratelimit", 0);
+	private static final long CHANNEL_RATE_LIMIT = Long.getLong("socialproxy.channelratelimit", 0);
+	private static final int KEEPALIVE = Integer.getInteger("socialproxy.keepalive", Carrier.DEFAULT_KEEPALIVE_SECONDS);
+	private static final int STATS_INTERVAL = Integer.getInteger("socialproxy.stats", 0);
+	private static final long WINDOW_BUDGET = Long.getLong("socialproxy.windowbudget", Carrier.DEFAULT_WINDOW_BUDGET);
+	private static final int CARRIERS = Integer.getInteger("socialproxy.carriers", 1);
+	private static final boolean EXTENDED_IDS =
+		Boolean.parseBoolean(System.getProperty("socialproxy.extendedids", "false"));
+	private static final boolean EARLY_DATA =
+		Boolean.parseBoolean(System.getProperty("socialproxy.earlydata", "false"));
+	private static boolean udp = false;
 
 	public static void main (String [] args) throws Exception
 	{
-		if (args.length < 3 || !(args[0].equals("client") || args[0].equals("server"))) {
+		if (!(args.length >= 2 && args[0].equals("server") ||
+					args.length >= 3 && args[0].equals("client"))) {
 			System.out.println("Server Usage:");
 			System.out.println("  java " + CarrierTool.class.getName() +
-					" server carrier-listen-port [tunnel-spec ...]");
+					" server [[listenaddr]:]carrier-listen-port [tunnel-spec ...]");
 			System.out.println("Client Usage:");
 			System.out.println("  java " + CarrierTool.class.getName() +
 					" client carrier-conn-addr carrier-conn-port [tunnel-spec ...]");
+			System.out.println("  IPv6 addresses go in brackets, as in [::1]");
 			System.out.println("Tunnel Spec:");
-			System.out.println("  tcp:listenport:connaddr:connport");
-			System.out.println("  socks:listenport");
+			System.out.println("  tcp:[[listenaddr]:]listenport:connaddr:connport[:weight[:priority]]");
+			System.out.println("    weight: share of bandwidth among busy channels, 1-" +
+					Carrier.MAX_WEIGHT + ", default " + Carrier.DEFAULT_WEIGHT);
+			System.out.println("    priority: interactive or bulk, default bulk");
+			System.out.println("  socks:[[listenaddr]:]listenport");
+			System.out.println("    listenaddr: local address to listen on, default all");
+			System.out.println("Options (java -Dname=value):");
+			System.out.println("  socialproxy.executor=eventloop|thread|virtual");
+			System.out.println("    how channels are served, default eventloop");
+			System.out.println("  socialproxy.sendbatch=N");
+			System.out.println("    max 16KB chunks per backend write, default " + Carrier.DEFAULT_SEND_BATCH);
+			System.out.println("  socialproxy.windowbudget=BYTES");
+			System.out.println("    max receive window memory of all channels of a carrier, default " +
+					Carrier.DEFAULT_WINDOW_BUDGET);
+			System.out.println("  socialproxy.memorybudget=BYTES");
+			System.out.println("    max receive window memory of all carriers, default " +
+					MemoryBudget.DEFAULT_LIMIT);
+			System.out.println("  socialproxy.ratelimit=BYTES");
+			System.out.println("    max bytes per second each carrier sends, default 0 (unlimited)");
+			System.out.println("  socialproxy.channelratelimit=BYTES");
+			System.out.println("    max bytes per second each channel sends, default 0 (unlimited)");
+			System.out.println("  socialproxy.globalratelimit=BYTES");
+			System.out.println("    max bytes per second all carriers send together, default 0 (unlimited)");
+			System.out.println("  socialproxy.keepalive=SECONDS");
+			System.out.println("    ping interval of an idle carrier, 0 to disable, default " +
+					Carrier.DEFAULT_KEEPALIVE_SECONDS);
+			System.out.println("  socialproxy.extendedids=true|false");
+			System.out.println("    offer more than 126 channels per carrier, both ends must be this version,");
+			System.out.println("    default false");
+			System.out.println("  socialproxy.earlydata=true|false");
+			System.out.println("    send the first " + Carrier.EARLY_DATA_CREDIT / 1024 +
+					"KB of a tcp: channel before the peer has connected its target,");
+			System.out.println("    both ends must be this version, default false");
+			System.out.println("  socialproxy.carriers=N");
+			System.out.println("    backend connections the client keeps open, redialing lost ones, default 1");
+			System.out.println("  socialproxy.striping=leastloaded|hashed");
+			System.out.println("    how new channels are spread over the carriers, by channel count");
+			System.out.println("    or by local client address, default leastloaded");
+			System.out.println("  socialproxy.transport=tcp|udp");
+			System.out.println("    what carriers run over, both ends must agree, default tcp");
+			System.out.println("  socialproxy.stats=SECONDS");
+			System.out.println("    log carrier RTT and throughput every SECONDS, default 0 (never)");
 			System.out.println("Examples:");
 			System.out.println("  java " + CarrierTool.class.getName() +
 					" server 8848 socks:8849");
@@ -37,50 +95,216 @@ public class CarrierTool {
 					" server 8848 tcp:8849:localhost:22");
 			System.out.println("  java " + CarrierTool.class.getName() +
 					" client localhost 8848 tcp:8850:localhost:22");
+			System.out.println("  java " + CarrierTool.class.getName() +
+					" client [2001:db8::1] 8848 tcp:[::1]:8850:[2001:db8::2]:22");
 			return;
 		}
 
+		readOptions();
+
 		for (int i = args[0].equals("server") ? 2 : 3; i < args.length; i ++) {
-			String [] arr = args[i].split(":");
+			String [] arr = splitSpec(args[i]);
+			// a bracketed field after the type is the listen address
+			String listenHost = null;
+			int n = 1;
+			if (arr.length > 1 && arr[1].startsWith("[")) {
+				listenHost = unbracket(arr[1]);
+				n = 2;
+			}
 			if (arr[0].equals("tcp")) {
-				new TCPListener(Integer.parseInt(arr[1]), arr[2], Integer.parseInt(arr[3])).start();
+				int weight = arr.length > n + 3 ? Integer.parseInt(arr[n + 3]) : Carrier.DEFAULT_WEIGHT;
+				int priority = Carrier.DEFAULT_PRIORITY;
+				if (arr.length > n + 4) {
+					if (arr[n + 4].equals("interactive"))
+						priority = Carrier.PRIORITY_INTERACTIVE;
+					else if (arr[n + 4].equals("bulk"))
+						priority = Carrier.PRIORITY_BULK;
+					else
+						throw new RuntimeException("unknown priority in spec " + args[i]);
+				}
+				new TCPListener(listenAddress(listenHost, arr[n]), unbracket(arr[n + 1]),
+						Integer.parseInt(arr[n + 2]), weight, priority).start();
 			} else if (arr[0].equals("socks")) {
-				throw new RuntimeException("don't yet support spec " + args[i]);
+				new SocksServer(carriers, listenAddress(listenHost, arr[n])).start();
 			} else {
 				throw new RuntimeException("don't support spec " + args[i]);
 			}
 		}
 
+		if (STATS_INTERVAL > 0)
+			startStatsLogger();
+
+		InetSocketAddress listenAddr = null;
 		if (args[0].equals("server")) {
+			String [] arr = splitSpec(args[1]);
+			listenAddr = arr.length > 1 ? listenAddress(unbracket(arr[0]), arr[1]) :
+				listenAddress(null, arr[0]);
+		}
+		if (args[0].equals("server") && udp) {
+			UDPTransport.Listener listener = new UDPTransport.Listener(listenAddr);
+			LOG.info("Lintening on UDP port " + args[1]);
+			while (true) {
+				Transport transport = listener.accept();
+				LOG.info("Accepted connection");
+				carriers.start(serverCarrier(transport));
+			}
+		} else if (args[0].equals("server")) {
 			ServerSocketChannel serverSocket = ServerSocketChannel.open();
-			serverSocket.bind(new InetSocketAddress(Integer.parseInt(args[1])));
+			serverSocket.bind(listenAddr);
 			LOG.info("Lintening on port " + args[1]);
 			while (true) {
 				SocketChannel socket = serverSocket.accept();
 				LOG.info("Accepted connection");
-				carrier = new Carrier(socket, true, KEY_S2C, KEY_C2S);
-				carrier.run();
-				carrier = null;
+				carriers.start(serverCarrier(new TCPTransport(socket)));
 			}
 		} else {
-			SocketChannel socket = SocketChannel.open(
-					new InetSocketAddress(args[1], Integer.parseInt(args[2])));
-			LOG.info("Carrier Connected");
-			carrier = new Carrier(socket, false, KEY_C2S, KEY_S2C);
-			carrier.run();
+			// dropped carriers are dialed again, the client runs until killed
+			carriers.maintain(CARRIERS, dialer(unbracket(args[1]), Integer.parseInt(args[2])));
 		}
 	}
 
+	/* split at the colons that aren't in brackets, so that IPv6 addresses
+	 * can be written as [2001:db8::1]. the brackets are kept. */
+	static String [] splitSpec (String spec)
+	{
+		ArrayList<String> fields = new ArrayList<String>();
+		boolean bracket = false;
+		int start = 0;
+		for (int i = 0; i < spec.length(); i ++) {
+			char c = spec.charAt(i);
+			if (c == '[')
+				bracket = true;
+			else if (c == ']')
+				bracket = false;
+			else if (c == ':' && !bracket) {
+				fields.add(spec.substring(start, i));
+				start = i + 1;
+			}
+		}
+		fields.add(spec.substring(start));
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	static String unbracket (String field)
+	{
+		if (field.startsWith("[") && field.endsWith("]"))
+			return field.substring(1, field.length() - 1);
+		return field;
+	}
+
+	/* host null means the wildcard address */
+	static InetSocketAddress listenAddress (String host, String port)
+	{
+		if (host == null)
+			return new InetSocketAddress(Integer.parseInt(port));
+		return new InetSocketAddress(host, Integer.parseInt(port));
+	}
+
+	/* the -D options that aren't read at class initialization */
+	static void readOptions ()
+	{
+		MemoryBudget.global().setLimit(
+				Long.getLong("socialproxy.memorybudget", MemoryBudget.DEFAULT_LIMIT));
+		Carrier.globalRateLimit().setRate(Long.getLong("socialproxy.globalratelimit", 0));
+		String executorName = System.getProperty("socialproxy.executor", "eventloop");
+		if (!executorName.equals("eventloop"))
+			channelExecutor = ChannelExecutors.forName(executorName);
+		String striping = System.getProperty("socialproxy.striping", "leastloaded");
+		if (striping.equals("hashed"))
+			carriers.setPolicy(CarrierGroup.POLICY_HASHED);
+		else if (!striping.equals("leastloaded"))
+			throw new RuntimeException("unknown striping " + striping);
+		String transportName = System.getProperty("socialproxy.transport", "tcp");
+		if (transportName.equals("udp"))
+			udp = true;
+		else if (!transportName.equals("tcp"))
+			throw new RuntimeException("unknown transport " + transportName);
+	}
+
+	/* the server's name is looked up again on every dial, so a client
+	 * started while DNS is down, or whose server moves, still gets there */
+	static CarrierGroup.Dialer dialer (final String host, final int port)
+	{
+		return new CarrierGroup.Dialer() {
+			@Override
+			public Carrier dial () throws IOException
+			{
+				InetSocketAddress serverAddr = new InetSocketAddress(host, port);
+				if (serverAddr.isUnresolved())
+					throw new UnknownHostException(host);
+				Transport transport = udp ? UDPTransport.connect(serverAddr) :
+					new TCPTransport(SocketChannel.open(serverAddr));
+				LOG.info("Carrier Connected");
+				return clientCarrier(transport);
+			}
+		};
+	}
+
+	static Carrier serverCarrier (Transport transport)
+	{
+		Carrier carrier = new Carrier(transport, true, KEY_S2C, KEY_C2S);
+		configure(carrier);
+		return carrier;
+	}
+
+	static Carrier clientCarrier (Transport transport)
+	{
+		Carrier carrier = new Carrier(transport, false, KEY_C2S, KEY_S2C);
+		configure(carrier);
+		return carrier;
+	}
+
+	private static void startStatsLogger ()
+	{
+		Thread logger = new Thread("stats") {
+			@Override
+			public void run ()
+			{
+				while (true) {
+					try {
+						Thread.sleep(STATS_INTERVAL * 1000L);
+					} catch (InterruptedException x) {
+						return;
+					}
+					for (Carrier c : carriers.getCarriers())
+						LOG.info("carrier channels=" + c.getChannelCount() + " " + c.getStats());
+				}
+			}
+		};
+		logger.setDaemon(true);
+		logger.start();
+	}
+
+	/* apply the -D options */
+	private static void configure (Carrier carrier)
+	{
+		carrier.setChannelExecutor(channelExecutor);
+		carrier.setSendBatch(SEND_BATCH);
+		carrier.setWindowBudget(WINDOW_BUDGET);
+		carrier.setKeepAlive(KEEPALIVE);
+		carrier.setExtendedIds(EXTENDED_IDS);
+		carrier.setEarlyData(EARLY_DATA);
+		carrier.setRateLimit(RATE_LIMIT);
+		carrier.setChannelRateLimit(CHANNEL_RATE_LIMIT);
+	}
+
 	static class TCPListener extends Thread {
-		private final int listenPort;
+		private static final long CARRIER_WAIT_MS = 5000;
+		private final ServerSocketChannel serverSocket;
 		private final String remoteAddr;
 		private final int remotePort;
-		public TCPListener (int listenPort, String remoteAddr, int remotePort)
+		private final int weight;
+		private final int priority;
+		public TCPListener (InetSocketAddress listenAddr, String remoteAddr, int remotePort,
+				int weight, int priority) throws IOException
 		{
-			super("TCPListener " + listenPort);
-			this.listenPort = listenPort;
+			super("TCPListener " + listenAddr.getPort());
+			serverSocket = ServerSocketChannel.open();
+			serverSocket.bind(listenAddr);
 			this.remoteAddr = remoteAddr;
 			this.remotePort = remotePort;
+			this.weight = weight;
+			this.priority = priority;
 		}
 
 		@Override
@@ -93,19 +317,24 @@ public class CarrierTool {
 			}
 		}
 
+		int getLocalPort () throws IOException
+		{
+			return ((InetSocketAddress)serverSocket.getLocalAddress()).getPort();
+		}
+
 		private void runInternal () throws Exception
 		{
-			ServerSocketChannel serverSocket = ServerSocketChannel.open();
-			serverSocket.bind(new InetSocketAddress(listenPort));
 			while (true) {
 				SocketChannel socket = serverSocket.accept();
 				LOG.info("Accepted local socket");
-				if (carrier == null) {
-					LOG.severe("local socket connected before carrier");
+				// give a carrier being redialed a moment
+				if (!carriers.awaitCarrier(CARRIER_WAIT_MS)) {
+					LOG.severe("no carrier for local socket");
 					socket.close();
 				} else {
-					boolean succeed = carrier.createChannel(socket, remoteAddr, remotePort);
-					LOG.info("carrier.createChannel() " + (succeed ? "succeed" : "failed"));
+					boolean succeed = carriers.createChannel(socket, remoteAddr, remotePort,
+							weight, priority);
+					LOG.info("carriers.createChannel() " + (succeed ? "succeed" : "failed"));
 					if (!succeed)
 						socket.close();
 				}
@@ -0,0 +1,54 @@
+package com.socialproxy.tunnel;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/* Executors that can be handed to Carrier.setChannelExecutor().
+ * A channel in executor mode uses blocking I/O and occupies two tasks for
+ * its whole life, so the executor must not bound the number of threads. */
+public final class ChannelExecutors
+{
+	private static final Executor THREAD_PER_TASK = new Executor() {
+		@Override
+		public void execute (Runnable task)
+		{
+			new Thread(task).start();
+		}
+	};
+
+	private ChannelExecutors () {}
+
+	/* a new platform thread for every task */
+	public static Executor threadPerTask ()
+	{
+		return THREAD_PER_TASK;
+	}
+
+	/* a new virtual thread for every task.
+	 * we still build on JDKs without virtual threads, so look it up at
+	 * run time. throw UnsupportedOperationException if not available. */
+	public static Executor virtualThreads ()
+	{
+		try {
+			return (Executor)Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor")
+				.invoke(null);
+		} catch (NoSuchMethodException x) {
+			throw new UnsupportedOperationException(
+					"virtual threads need Java 21 or newer, running " +
+					System.getProperty("java.version"));
+		} catch (Exception x) {
+			throw new UnsupportedOperationException("cannot create virtual thread executor", x);
+		}
+	}
+
+	/* name is one of "thread" or "virtual" */
+	public static Executor forName (String name)
+	{
+		switch (name) {
+			case "thread": return threadPerTask();
+			case "virtual": return virtualThreads();
+			default: throw new IllegalArgumentException("unknown executor " + name);
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.socialproxy.tunnel;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Hands out the channel IDs that one side of a carrier may create, with a
+ * bitmap of free IDs updated by CAS, so that any thread can create and free
+ * channels without a lock.
+ * IDs are numbered by index [0, count); the carrier maps an index to the
+ * channel ID. The lowest free index is always handed out first, so that
+ * IDs stay small while few channels are open. */
+final class ChannelIdAllocator
+{
+	private final int count;
+	private final AtomicLongArray free; // bit set = index free
+
+	ChannelIdAllocator (int count)
+	{
+		this.count = count;
+		free = new AtomicLongArray((count + 63) / 64);
+		for (int i = 0; i < count; i ++)
+			free.set(i / 64, free.get(i / 64) | (1L << (i % 64)));
+	}
+
+	/* return the lowest free index below limit, now taken,
+	 * or -1 if all of them are taken */
+	int allocate (int limit)
+	{
+		int words = Math.min(free.length(), (limit + 63) / 64);
+		for (int word = 0; word < words; word ++) {
+			long bits;
+			while ((bits = free.get(word)) != 0) {
+				long lowest = bits & -bits;
+				int index = word * 64 + Long.numberOfTrailingZeros(lowest);
+				if (index >= limit)
+					return -1;
+				if (free.compareAndSet(word, bits, bits & ~lowest))
+					return index;
+			}
+		}
+		return -1;
+	}
+
+	void release (int index)
+	{
+		if (index < 0 || index >= count)
+			throw new IllegalArgumentException("index " + index + " not in [0, " + count + ")");
+		long bit = 1L << (index % 64);
+		long bits;
+		do {
+			bits = free.get(index / 64);
+			assert (bits & bit) == 0 : "index " + index + " released twice";
+		} while (!free.compareAndSet(index / 64, bits, bits | bit));
+	}
+}
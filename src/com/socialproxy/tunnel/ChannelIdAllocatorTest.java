@@ -0,0 +1,73 @@
+package com.socialproxy.tunnel;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class ChannelIdAllocatorTest
+{
+	/* allocate every index below limit, in order, and check there are no
+	 * more; then the rest up to count */
+	public static void testExhaust (int count, int limit)
+	{
+		ChannelIdAllocator ids = new ChannelIdAllocator(count);
+		for (int i = 0; i < limit; i ++) {
+			int index = ids.allocate(limit);
+			if (index != i)
+				throw new RuntimeException("expected index " + i + ", got " + index);
+		}
+		if (ids.allocate(limit) != -1)
+			throw new RuntimeException("allocated more than limit " + limit);
+		ids.release(limit / 2);
+		if (ids.allocate(limit) != limit / 2)
+			throw new RuntimeException("released index not reused");
+		for (int i = limit; i < count; i ++)
+			if (ids.allocate(count) != i)
+				throw new RuntimeException("index " + i + " not allocated");
+		if (ids.allocate(count) != -1)
+			throw new RuntimeException("allocated more than " + count);
+	}
+
+	/* threads allocate and release at random, no index may be held twice */
+	public static void testConcurrent (final int count, int nthreads)
+			throws InterruptedException
+	{
+		final ChannelIdAllocator ids = new ChannelIdAllocator(count);
+		final AtomicIntegerArray held = new AtomicIntegerArray(count);
+		final RuntimeException [] error = new RuntimeException[1];
+		Thread [] threads = new Thread [nthreads];
+		for (int t = 0; t < nthreads; t ++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run ()
+				{
+					for (int i = 0; i < 100000; i ++) {
+						int index = ids.allocate(count);
+						if (index == -1)
+							continue;
+						if (held.getAndIncrement(index) != 0) {
+							error[0] = new RuntimeException("index " + index + " handed out twice");
+							return;
+						}
+						held.decrementAndGet(index);
+						ids.release(index);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		if (error[0] != null)
+			throw error[0];
+	}
+
+	public static void main (String [] args) throws InterruptedException
+	{
+		testExhaust(63, 63);
+		testExhaust(1000, 63);
+		testExhaust(1000, 64);
+		testExhaust(32831, 63);
+		testConcurrent(63, 8);
+		testConcurrent(3, 8);
+		testConcurrent(200, 8);
+	}
+}
@@ -0,0 +1,328 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/* Connector makes the outgoing connections to the targets of CON1s.
+ * One thread runs all connects as non-blocking connect()s on a selector,
+ * with hostnames looked up by a Resolver, so a slow target or slow DNS
+ * only holds a little state, not a thread.
+ * A target with more than one address is dialed Happy Eyeballs style
+ * (RFC 8305): addresses alternate between IPv6 and IPv4, starting with the
+ * family of the first, and the next one is tried ATTEMPT_DELAY_MS after the
+ * previous or as soon as it fails, with earlier attempts still running.
+ * The first to connect wins and the others are closed. A target that
+ * isn't connected within the timeout fails, also while its name is still
+ * being looked up; the late answer is ignored.
+ * Connector is thread safe. */
+public final class Connector
+{
+	/* gets the connected socket, or the error, in the connector thread.
+	 * the socket is non-blocking and registered with no selector. */
+	public interface Callback
+	{
+		void connected (SocketChannel socket);
+		void failed (IOException x);
+	}
+
+	private final static Logger LOG = Logger.getLogger(Connector.class.getName());
+	public static final long DEFAULT_TIMEOUT_MS = 10000;
+	public static final long ATTEMPT_DELAY_MS = 250;
+	private static Connector global;
+
+	private final Resolver resolver;
+	private final long timeoutNanos;
+	private final Selector selector;
+	// new dials, their names maybe still being looked up, from any thread
+	private final Queue<Dial> newDials = new ConcurrentLinkedQueue<Dial>();
+	// dials whose lookup has answered, from the resolver
+	private final Queue<Dial> resolvedDials = new ConcurrentLinkedQueue<Dial>();
+	// only used by the connector thread
+	private final ArrayList<Dial> dials = new ArrayList<Dial>();
+
+	public Connector (Resolver resolver, long timeoutMillis) throws IOException
+	{
+		this.resolver = resolver;
+		timeoutNanos = timeoutMillis * 1000000L;
+		selector = Selector.open();
+		Thread thread = new Thread("Connector") {
+			@Override
+			public void run ()
+			{
+				// every carrier's CON1s wait on this thread, it must not die of a bug
+				while (true) {
+					try {
+						runInternal();
+					} catch (IOException x) {
+						LOG.log(Level.SEVERE, "Connector error", x);
+						return;
+					} catch (RuntimeException x) {
+						LOG.log(Level.SEVERE, "Connector error, going on", x);
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/* the connector shared by carriers that aren't given one */
+	public static synchronized Connector global ()
+	{
+		if (global == null) {
+			try {
+				global = new Connector(Resolver.global(), DEFAULT_TIMEOUT_MS);
+			} catch (IOException x) {
+				throw new RuntimeException(x);
+			}
+		}
+		return global;
+	}
+
+	/* connect to hostname:port and tell callback. can be called in any thread */
+	public void connect (final String hostname, final int port, final Callback callback)
+	{
+		final Dial dial = new Dial(hostname, port, System.nanoTime() + timeoutNanos, callback);
+		// the deadline runs during the lookup
+		newDials.add(dial);
+		selector.wakeup();
+		resolver.resolve(hostname, new Resolver.Callback() {
+			@Override
+			public void resolved (InetAddress [] addrs)
+			{
+				dial.lookedUp = order(addrs);
+				resolvedDials.add(dial);
+				selector.wakeup();
+			}
+
+			@Override
+			public void failed (UnknownHostException x)
+			{
+				// answered in the connector thread too
+				dial.lookupError = x;
+				resolvedDials.add(dial);
+				selector.wakeup();
+			}
+		});
+	}
+
+	/* alternate the families, starting with that of the first */
+	static InetAddress [] order (InetAddress [] addrs)
+	{
+		ArrayList<InetAddress> first = new ArrayList<InetAddress>();
+		ArrayList<InetAddress> second = new ArrayList<InetAddress>();
+		boolean firstIsV6 = addrs[0] instanceof Inet6Address;
+		for (InetAddress addr : addrs)
+			((addr instanceof Inet6Address) == firstIsV6 ? first : second).add(addr);
+		InetAddress [] ordered = new InetAddress[addrs.length];
+		int n = 0;
+		for (int i = 0; i < first.size() || i < second.size(); i ++) {
+			if (i < first.size())
+				ordered[n ++] = first.get(i);
+			if (i < second.size())
+				ordered[n ++] = second.get(i);
+		}
+		return ordered;
+	}
+
+	private void runInternal () throws IOException
+	{
+		ArrayList<Dial> done = new ArrayList<Dial>();
+		while (true) {
+			long now = System.nanoTime();
+			long wait = 0;
+			for (Dial dial : dials) {
+				long next = dial.nextEvent() - now;
+				if (next <= 0)
+					next = 1;
+				if (wait == 0 || next < wait)
+					wait = next;
+			}
+			selector.select(wait == 0 ? 0 : Math.max(1, wait / 1000000L));
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				Dial dial = (Dial)key.attachment();
+				if (key.isValid() && key.isConnectable())
+					dial.onConnectable(key);
+			}
+
+			Dial dial;
+			while ((dial = newDials.poll()) != null)
+				dials.add(dial);
+			now = System.nanoTime();
+			while ((dial = resolvedDials.poll()) != null)
+				dial.onResolved(now);
+			for (Iterator<Dial> dit = dials.iterator(); dit.hasNext(); ) {
+				dial = dit.next();
+				dial.onTime(now);
+				if (dial.winner != null || dial.error != null) {
+					dit.remove();
+					done.add(dial);
+				}
+			}
+
+			if (!done.isEmpty()) {
+				// flush the cancelled keys, a blocking channel can't have any
+				selector.selectNow();
+				for (Dial d : done)
+					d.finish();
+				done.clear();
+			}
+		}
+	}
+
+	/* the connection attempts to one target */
+	private class Dial
+	{
+		final String hostname;
+		final int port;
+		InetAddress [] addrs; // null while looking up
+		final long deadline;
+		final Callback callback;
+		// the lookup's answer, set in the resolver's thread before resolvedDials has the dial
+		InetAddress [] lookedUp;
+		UnknownHostException lookupError;
+		int next = 0; // index in addrs of the next attempt
+		long nextAttempt; // nanoTime
+		final ArrayList<SelectionKey> attempts = new ArrayList<SelectionKey>();
+		SocketChannel winner;
+		IOException error;
+
+		Dial (String hostname, int port, long deadline, Callback callback)
+		{
+			this.hostname = hostname;
+			this.port = port;
+			this.deadline = deadline;
+			this.callback = callback;
+		}
+
+		long nextEvent ()
+		{
+			return addrs != null && next < addrs.length && nextAttempt - deadline < 0 ?
+				nextAttempt : deadline;
+		}
+
+		/* the lookup has answered. the dial may be over already, timed out,
+		 * or not yet in dials */
+		void onResolved (long now)
+		{
+			if (winner != null || error != null)
+				return;
+			if (lookupError != null) {
+				error = lookupError;
+				return;
+			}
+			addrs = lookedUp;
+			nextAttempt = now;
+		}
+
+		void onTime (long now)
+		{
+			if (winner != null || error != null)
+				return;
+			if (now - deadline >= 0) {
+				fail(new SocketTimeoutException(addrs == null ?
+						"lookup of " + hostname + " timed out" : "connect timed out"));
+				return;
+			}
+			if (addrs == null)
+				return;
+			while (winner == null && next < addrs.length &&
+					(now - nextAttempt >= 0 || attempts.isEmpty()))
+				startAttempt(now);
+			if (winner == null && attempts.isEmpty() && next == addrs.length && error == null)
+				fail(new ConnectException("no address of " + hostname + " connected"));
+		}
+
+		private void startAttempt (long now)
+		{
+			InetSocketAddress addr = new InetSocketAddress(addrs[next ++], port);
+			nextAttempt = now + ATTEMPT_DELAY_MS * 1000000L;
+			SocketChannel socket = null;
+			try {
+				socket = SocketChannel.open();
+				socket.configureBlocking(false);
+				if (socket.connect(addr)) {
+					winner = socket;
+					closeAttempts();
+					return;
+				}
+				attempts.add(socket.register(selector, SelectionKey.OP_CONNECT, this));
+			} catch (IOException x) {
+				LOG.fine("connecting " + addr + " failed: " + x.getMessage());
+				if (socket != null)
+					try {socket.close();} catch (Exception y) {}
+			}
+		}
+
+		void onConnectable (SelectionKey key)
+		{
+			SocketChannel socket = (SocketChannel)key.channel();
+			attempts.remove(key);
+			key.cancel();
+			try {
+				if (!socket.finishConnect())
+					return; // not possible with OP_CONNECT
+			} catch (IOException x) {
+				LOG.fine("connecting " + hostname + ":" + port + " failed: " + x.getMessage());
+				try {socket.close();} catch (Exception y) {}
+				// the next address needn't wait
+				nextAttempt = System.nanoTime();
+				return;
+			}
+			if (winner != null || error != null) {
+				try {socket.close();} catch (Exception y) {}
+				return;
+			}
+			winner = socket;
+			closeAttempts();
+		}
+
+		private void fail (IOException x)
+		{
+			error = x;
+			closeAttempts();
+		}
+
+		private void closeAttempts ()
+		{
+			for (SelectionKey key : attempts) {
+				key.cancel();
+				try {key.channel().close();} catch (Exception y) {}
+			}
+			attempts.clear();
+		}
+
+		/* after the cancelled keys are flushed */
+		void finish ()
+		{
+			try {
+				if (winner != null)
+					callback.connected(winner);
+				else
+					callback.failed(error);
+			} catch (RuntimeException x) {
+				LOG.log(Level.WARNING, "callback of " + hostname + ":" + port + " failed", x);
+				if (winner != null)
+					try {winner.close();} catch (Exception y) {}
+			}
+		}
+	}
+}
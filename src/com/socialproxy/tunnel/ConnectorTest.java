@@ -0,0 +1,115 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectorTest
+{
+	/* what a Connector or Resolver answered */
+	static class Result implements Connector.Callback, Resolver.Callback
+	{
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile SocketChannel socket;
+		volatile InetAddress [] addrs;
+		volatile IOException error;
+
+		public void connected (SocketChannel socket) {this.socket = socket; done.countDown();}
+		public void resolved (InetAddress [] addrs) {this.addrs = addrs; done.countDown();}
+		public void failed (IOException x) {error = x; done.countDown();}
+		public void failed (UnknownHostException x) {error = x; done.countDown();}
+
+		Result await () throws InterruptedException
+		{
+			if (!done.await(20, TimeUnit.SECONDS))
+				throw new RuntimeException("no answer");
+			return this;
+		}
+	}
+
+	public static void testOrder () throws Exception
+	{
+		InetAddress a6 = InetAddress.getByName("2001:db8::1");
+		InetAddress b6 = InetAddress.getByName("2001:db8::2");
+		InetAddress c6 = InetAddress.getByName("2001:db8::3");
+		InetAddress a4 = InetAddress.getByName("192.0.2.1");
+		InetAddress b4 = InetAddress.getByName("192.0.2.2");
+		InetAddress [] ordered = Connector.order(new InetAddress [] {a6, b6, c6, a4, b4});
+		if (!Arrays.equals(ordered, new InetAddress [] {a6, a4, b6, b4, c6}))
+			throw new RuntimeException("order " + Arrays.toString(ordered));
+		ordered = Connector.order(new InetAddress [] {a4, b4, a6});
+		if (!Arrays.equals(ordered, new InetAddress [] {a4, a6, b4}))
+			throw new RuntimeException("order " + Arrays.toString(ordered));
+	}
+
+	/* a name that doesn't resolve is answered from the cache the second time */
+	public static void testNegativeCache () throws Exception
+	{
+		Resolver resolver = new Resolver(2);
+		Result first = new Result();
+		resolver.resolve("no-such-host.invalid", first);
+		if (!(first.await().error instanceof UnknownHostException))
+			throw new RuntimeException("resolved no-such-host.invalid: " + first.error);
+		Result second = new Result();
+		resolver.resolve("no-such-host.invalid", second);
+		if (second.done.getCount() != 0 || !(second.error instanceof UnknownHostException))
+			throw new RuntimeException("failure not cached: " + second.error);
+
+		Result literal = new Result();
+		resolver.resolve("127.0.0.1", literal);
+		if (literal.done.getCount() != 0 || literal.addrs.length != 1)
+			throw new RuntimeException("literal looked up");
+	}
+
+	public static void testConnect () throws Exception
+	{
+		Connector connector = new Connector(new Resolver(2), 5000);
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		int port = ((InetSocketAddress)server.getLocalAddress()).getPort();
+
+		Result ok = new Result();
+		connector.connect("127.0.0.1", port, ok);
+		if (ok.await().socket == null)
+			throw new RuntimeException("127.0.0.1 failed: " + ok.error);
+		if (!ok.socket.isConnected() || ok.socket.isBlocking())
+			throw new RuntimeException("socket not connected or blocking");
+		// the socket is free of the connector's selector
+		ok.socket.configureBlocking(true);
+		server.accept().close();
+		ok.socket.close();
+
+		// localhost may also be ::1, where nobody listens
+		Result fallback = new Result();
+		connector.connect("localhost", port, fallback);
+		if (fallback.await().socket == null)
+			throw new RuntimeException("localhost failed: " + fallback.error);
+		server.accept().close();
+		fallback.socket.close();
+
+		server.close();
+		Result refused = new Result();
+		connector.connect("127.0.0.1", port, refused);
+		if (!(refused.await().error instanceof ConnectException))
+			throw new RuntimeException("not refused: " + refused.error);
+
+		Result unknown = new Result();
+		connector.connect("no-such-host.invalid", port, unknown);
+		if (!(unknown.await().error instanceof UnknownHostException))
+			throw new RuntimeException("no-such-host.invalid: " + unknown.error);
+	}
+
+	public static void main (String [] args) throws Exception
+	{
+		testOrder();
+		testNegativeCache();
+		testConnect();
+	}
+}
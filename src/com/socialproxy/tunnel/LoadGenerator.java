@@ -0,0 +1,441 @@
+package com.socialproxy.tunnel;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/* End-to-end load test of the tunnel in one JVM over loopback: a target
+ * server, the server and client halves of CarrierTool with carriers
+ * between them, and workers that open tcp: tunnel channels through the
+ * client's TCPListener, like
+ *   worker -> TCPListener -> carriers -> target
+ * The carriers take the same socialproxy.* -D options as CarrierTool.
+ * After the warmup it measures for the duration and reports throughput,
+ * request latency, channel setup time and CPU per GB.
+ *
+ * Patterns:
+ *   rr        send size bytes, wait for response bytes, repeat
+ *   upload    send size byte chunks, the target only reads
+ *   download  the target sends response byte chunks, the worker only reads
+ * With -churn N a channel is closed and a new one opened after N requests
+ * or chunks. Setup time is from connect() until the first response or
+ * chunk has arrived, so it includes one exchange; upload has none. */
+public class LoadGenerator
+{
+	private final static Logger LOG = Logger.getLogger(LoadGenerator.class.getName());
+	private static final int SO_TIMEOUT_MS = 10000;
+
+	private static int channels = 10;
+	private static int size = 1024;
+	private static int response = 1024;
+	private static String pattern = "rr";
+	private static int churn = 0;
+	private static int duration = 10;
+	private static int warmup = 2;
+	private static int carrierCount = 1;
+	private static String transport = "tcp";
+
+	private static volatile boolean measuring = false;
+	private static volatile boolean stopping = false;
+	private static final AtomicLong bytes = new AtomicLong(); // payload both ways
+	private static final AtomicLong requests = new AtomicLong();
+	private static final AtomicLong errors = new AtomicLong();
+	private static final List<Worker> workers = new ArrayList<Worker>();
+
+	/* latencies in nanoseconds */
+	private static class Samples
+	{
+		long [] values = new long [1024];
+		int count = 0;
+
+		void add (long value)
+		{
+			if (count == values.length)
+				values = Arrays.copyOf(values, count * 2);
+			values[count ++] = value;
+		}
+
+		void addAll (Samples other)
+		{
+			for (int i = 0; i < other.count; i ++)
+				add(other.values[i]);
+		}
+
+		/* call after sort() */
+		long percentile (double p)
+		{
+			if (count == 0)
+				return 0;
+			int index = (int)Math.ceil(p * count) - 1;
+			return values[Math.max(0, Math.min(index, count - 1))];
+		}
+
+		void sort ()
+		{
+			Arrays.sort(values, 0, count);
+		}
+
+		String summary ()
+		{
+			sort();
+			return String.format("p50=%dus p99=%dus p999=%dus max=%dus (n=%d)",
+					percentile(0.5) / 1000, percentile(0.99) / 1000,
+					percentile(0.999) / 1000, percentile(1) / 1000, count);
+		}
+	}
+
+	/* the other end of the channels, one thread per connection */
+	static class Target extends Thread
+	{
+		private final ServerSocket server;
+
+		Target () throws IOException
+		{
+			super("target");
+			setDaemon(true);
+			server = new ServerSocket(0, 1000, InetAddress.getLoopbackAddress());
+		}
+
+		int getPort ()
+		{
+			return server.getLocalPort();
+		}
+
+		@Override
+		public void run ()
+		{
+			while (true) {
+				final Socket socket;
+				try {
+					socket = server.accept();
+				} catch (IOException x) {
+					return;
+				}
+				Thread thread = new Thread("target conn") {
+					@Override
+					public void run ()
+					{
+						try {
+							serve(socket);
+						} catch (IOException x) {
+							// the worker closed the channel
+						} finally {
+							try {socket.close();} catch (IOException x) {}
+						}
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		private void serve (Socket socket) throws IOException
+		{
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			byte [] request = new byte [size];
+			byte [] reply = new byte [response];
+			if (pattern.equals("rr")) {
+				while (true) {
+					in.readFully(request);
+					out.write(reply);
+				}
+			} else if (pattern.equals("upload")) {
+				int n;
+				while ((n = in.read(request)) >= 0)
+					if (measuring)
+						bytes.addAndGet(n);
+			} else {
+				while (true)
+					out.write(reply);
+			}
+		}
+	}
+
+	/* one channel at a time, opened again after churn requests */
+	static class Worker extends Thread
+	{
+		private final int port;
+		final Samples latency = new Samples();
+		final Samples setup = new Samples();
+
+		Worker (int id, int port)
+		{
+			super("worker " + id);
+			setDaemon(true);
+			this.port = port;
+		}
+
+		@Override
+		public void run ()
+		{
+			while (!stopping) {
+				Socket socket = new Socket();
+				try {
+					long start = System.nanoTime();
+					socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+					socket.setTcpNoDelay(true);
+					socket.setSoTimeout(SO_TIMEOUT_MS);
+					runChannel(socket, start);
+				} catch (IOException x) {
+					if (!stopping) {
+						LOG.fine(getName() + ": " + x);
+						errors.incrementAndGet();
+					}
+				} finally {
+					try {socket.close();} catch (IOException x) {}
+				}
+			}
+		}
+
+		private void runChannel (Socket socket, long start) throws IOException
+		{
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			byte [] request = new byte [size];
+			byte [] reply = new byte [response];
+			for (int i = 0; churn == 0 || i < churn; i ++) {
+				if (stopping)
+					return;
+				long begin = System.nanoTime();
+				if (pattern.equals("rr")) {
+					out.write(request);
+					in.readFully(reply);
+				} else if (pattern.equals("upload")) {
+					out.write(request);
+				} else {
+					in.readFully(reply);
+				}
+				long end = System.nanoTime();
+				if (!measuring)
+					continue;
+				if (i == 0 && !pattern.equals("upload"))
+					setup.add(end - start);
+				else if (pattern.equals("rr"))
+					latency.add(end - begin);
+				requests.incrementAndGet();
+				if (pattern.equals("rr"))
+					bytes.addAndGet(size + response);
+				else if (pattern.equals("download"))
+					bytes.addAndGet(response);
+			}
+		}
+	}
+
+	/* the server half of CarrierTool in background threads. returns the
+	 * address the client dials. */
+	private static InetSocketAddress startServer (final CarrierGroup group) throws IOException
+	{
+		InetSocketAddress local = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+		Thread acceptor;
+		InetSocketAddress addr;
+		if (transport.equals("udp")) {
+			final UDPTransport.Listener listener = new UDPTransport.Listener(local);
+			addr = listener.getLocalAddress();
+			acceptor = new Thread("server acceptor") {
+				@Override
+				public void run ()
+				{
+					try {
+						while (true)
+							group.start(CarrierTool.serverCarrier(listener.accept()));
+					} catch (IOException x) {
+						LOG.warning("accept failed: " + x);
+					}
+				}
+			};
+		} else {
+			final ServerSocketChannel server = ServerSocketChannel.open();
+			server.bind(local);
+			addr = (InetSocketAddress)server.getLocalAddress();
+			acceptor = new Thread("server acceptor") {
+				@Override
+				public void run ()
+				{
+					try {
+						while (true)
+							group.start(CarrierTool.serverCarrier(new TCPTransport(server.accept())));
+					} catch (IOException x) {
+						LOG.warning("accept failed: " + x);
+					}
+				}
+			};
+		}
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return addr;
+	}
+
+	/* the client half of CarrierTool: its carrier group dialing the server */
+	private static CarrierGroup.Dialer clientDialer (final CarrierGroup serverGroup)
+		throws IOException
+	{
+		if (!transport.equals("pipe")) {
+			final InetSocketAddress serverAddr = startServer(serverGroup);
+			if (transport.equals("udp"))
+				return new CarrierGroup.Dialer() {
+					@Override
+					public Carrier dial () throws IOException
+					{
+						return CarrierTool.clientCarrier(UDPTransport.connect(serverAddr));
+					}
+				};
+			return new CarrierGroup.Dialer() {
+				@Override
+				public Carrier dial () throws IOException
+				{
+					return CarrierTool.clientCarrier(
+							new TCPTransport(SocketChannel.open(serverAddr)));
+				}
+			};
+		}
+		return new CarrierGroup.Dialer() {
+			@Override
+			public Carrier dial ()
+			{
+				PipeTransport [] pair = PipeTransport.pair();
+				serverGroup.start(CarrierTool.serverCarrier(pair[0]));
+				return CarrierTool.clientCarrier(pair[1]);
+			}
+		};
+	}
+
+	/* CPU time of the live threads whose name ends with " carrier" */
+	private static long carrierCpuNanos (ThreadMXBean threads)
+	{
+		long total = 0;
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info == null || !info.getThreadName().endsWith(" carrier"))
+				continue;
+			long cpu = threads.getThreadCpuTime(info.getThreadId());
+			if (cpu > 0)
+				total += cpu;
+		}
+		return total;
+	}
+
+	private static long processCpuNanos ()
+	{
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		return -1;
+	}
+
+	private static void usage ()
+	{
+		System.out.println("Usage: java " + LoadGenerator.class.getName() + " [options]");
+		System.out.println("  -channels N      concurrent channels, default " + channels);
+		System.out.println("  -size BYTES      request or upload chunk size, default " + size);
+		System.out.println("  -response BYTES  response or download chunk size, default " + response);
+		System.out.println("  -pattern rr|upload|download  default " + pattern);
+		System.out.println("  -churn N         reopen a channel after N requests, 0 never, default " + churn);
+		System.out.println("  -duration SECONDS  default " + duration);
+		System.out.println("  -warmup SECONDS  default " + warmup);
+		System.out.println("  -carriers N      default " + carrierCount);
+		System.out.println("  -transport tcp|udp|pipe  default " + transport);
+		System.out.println("and the socialproxy.* -D options of CarrierTool");
+	}
+
+	public static void main (String [] args) throws Exception
+	{
+		for (int i = 0; i < args.length; i ++) {
+			String name = args[i];
+			if (i + 1 == args.length || !name.startsWith("-")) {
+				usage();
+				return;
+			}
+			String value = args[++ i];
+			switch (name) {
+			case "-channels": channels = Integer.parseInt(value); break;
+			case "-size": size = Integer.parseInt(value); break;
+			case "-response": response = Integer.parseInt(value); break;
+			case "-pattern": pattern = value; break;
+			case "-churn": churn = Integer.parseInt(value); break;
+			case "-duration": duration = Integer.parseInt(value); break;
+			case "-warmup": warmup = Integer.parseInt(value); break;
+			case "-carriers": carrierCount = Integer.parseInt(value); break;
+			case "-transport": transport = value; break;
+			default: usage(); return;
+			}
+		}
+		if (!pattern.equals("rr") && !pattern.equals("upload") && !pattern.equals("download"))
+			throw new RuntimeException("unknown pattern " + pattern);
+		if (!transport.equals("tcp") && !transport.equals("udp") && !transport.equals("pipe"))
+			throw new RuntimeException("unknown transport " + transport);
+		CarrierTool.readOptions();
+
+		Target target = new Target();
+		target.start();
+		CarrierGroup serverGroup = new CarrierGroup("server");
+		CarrierGroup clientGroup = CarrierTool.carriers;
+		clientGroup.maintain(carrierCount, clientDialer(serverGroup));
+		CarrierTool.TCPListener listener = new CarrierTool.TCPListener(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+				InetAddress.getLoopbackAddress().getHostAddress(), target.getPort(),
+				Carrier.DEFAULT_WEIGHT, Carrier.DEFAULT_PRIORITY);
+		listener.setDaemon(true);
+		listener.start();
+		if (!clientGroup.awaitCarrier(10000))
+			throw new RuntimeException("no carrier");
+
+		for (int i = 0; i < channels; i ++) {
+			Worker worker = new Worker(i, listener.getLocalPort());
+			workers.add(worker);
+			worker.start();
+		}
+		Thread.sleep(warmup * 1000L);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long carrierCpu = carrierCpuNanos(threads);
+		long processCpu = processCpuNanos();
+		long start = System.nanoTime();
+		measuring = true;
+		Thread.sleep(duration * 1000L);
+		measuring = false;
+		double seconds = (System.nanoTime() - start) / 1e9;
+		carrierCpu = carrierCpuNanos(threads) - carrierCpu;
+		processCpu = processCpuNanos() - processCpu;
+		stopping = true;
+
+		Samples latency = new Samples();
+		Samples setup = new Samples();
+		for (Worker worker : workers) {
+			worker.join(SO_TIMEOUT_MS);
+			latency.addAll(worker.latency);
+			setup.addAll(worker.setup);
+		}
+		double gb = bytes.get() / 1e9;
+		System.out.printf("pattern=%s channels=%d size=%d response=%d churn=%d transport=%s carriers=%d%n",
+				pattern, channels, size, response, churn, transport, carrierCount);
+		System.out.printf("requests: %d, %.1f/s, errors %d%n",
+				requests.get(), requests.get() / seconds, errors.get());
+		System.out.printf("throughput: %.2f MB/s of payload%n", bytes.get() / seconds / 1e6);
+		if (pattern.equals("rr"))
+			System.out.println("latency: " + latency.summary());
+		// without churn the channels are set up during the warmup
+		if (setup.count > 0)
+			System.out.println("setup: " + setup.summary());
+		if (gb > 0)
+			System.out.printf("cpu per GB: %.2fs process, %.2fs carrier threads%n",
+					processCpu / 1e9 / gb, carrierCpu / 1e9 / gb);
+		serverGroup.close();
+		clientGroup.close();
+		System.exit(0);
+	}
+}
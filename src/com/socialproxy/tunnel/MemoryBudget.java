@@ -0,0 +1,128 @@
+package com.socialproxy.tunnel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import com.socialproxy.util.BufferPool;
+
+/* MemoryBudget accounts for the receive windows of channels, usually of all
+ * carriers in the JVM (see global()).
+ * What is accounted is window credit, the bytes the peers may send us
+ * without waiting for an ack, rather than allocated memory: a channel only
+ * holds receive buffer storage while it has data in flight, but the storage
+ * it may need is bounded by its credit, rounded up to a size class.
+ * Channels reserve their initial window with reserve(), which always
+ * succeeds so that a new channel can make progress, and grow it with
+ * tryReserve(), which fails beyond the limit. When more than TIGHT_PERCENT of
+ * the limit is reserved the budget isTight() and channels hand credit back.
+ * MemoryBudget is thread safe. */
+public final class MemoryBudget
+{
+	public static final long DEFAULT_LIMIT = 256L << 20;
+	private static final int TIGHT_PERCENT = 75;
+	// free storage each size class keeps, at least one buffer
+	private static final long POOLED_BYTES = 64L * Carrier.CHANNEL_RECVBUF_SIZE;
+	private static final MemoryBudget GLOBAL = new MemoryBudget(DEFAULT_LIMIT);
+
+	private volatile long limit;
+	private final AtomicLong reserved = new AtomicLong(0);
+	/* receive buffer storage comes in size classes, each pooled: the
+	 * minimum window, the default one, which nearly every channel uses,
+	 * and its doublings up to the maximum window, which are the sizes
+	 * auto-tuned windows grow through. direct memory is only freed by the
+	 * GC, so it is kept rather than allocated again. */
+	private final BufferPool [] pools;
+
+	public MemoryBudget (long limit)
+	{
+		this.limit = limit;
+		int count = 2;
+		for (int size = Carrier.CHANNEL_RECVBUF_SIZE; size < Carrier.MAX_CHANNEL_WINDOW; size *= 2)
+			count ++;
+		pools = new BufferPool[count];
+		pools[0] = pool(Carrier.MIN_CHANNEL_WINDOW);
+		int size = Carrier.CHANNEL_RECVBUF_SIZE;
+		for (int i = 1; i < count; i ++, size *= 2)
+			pools[i] = pool(Math.min(size, Carrier.MAX_CHANNEL_WINDOW));
+	}
+
+	private static BufferPool pool (int size)
+	{
+		return new BufferPool(size, (int)Math.max(1, POOLED_BYTES / size), true);
+	}
+
+	/* the budget shared by carriers that aren't given one */
+	public static MemoryBudget global () {return GLOBAL;}
+
+	public void setLimit (long limit)
+	{
+		if (limit <= 0)
+			throw new IllegalArgumentException("limit=" + limit);
+		this.limit = limit;
+	}
+
+	public long getLimit () {return limit;}
+	public long getReserved () {return reserved.get();}
+
+	public boolean isTight ()
+	{
+		return reserved.get() > limit / 100 * TIGHT_PERCENT;
+	}
+
+	/* reserve size bytes even if that exceeds the limit */
+	void reserve (long size)
+	{
+		reserved.addAndGet(size);
+	}
+
+	/* reserve size bytes, unless that exceeds the limit.
+	 * return whether reserved. */
+	boolean tryReserve (long size)
+	{
+		long old;
+		do {
+			old = reserved.get();
+			if (old + size > limit)
+				return false;
+		} while (!reserved.compareAndSet(old, old + size));
+		return true;
+	}
+
+	void release (long size)
+	{
+		long newval = reserved.addAndGet(-size);
+		assert newval >= 0;
+	}
+
+	/* the capacity of the storage allocate() gives for size bytes: the
+	 * smallest size class that holds them */
+	int storageSize (int size)
+	{
+		for (BufferPool pool : pools)
+			if (pool.getBufferSize() >= size)
+				return pool.getBufferSize();
+		return size;
+	}
+
+	/* direct storage for a receive buffer of at least size bytes, see
+	 * storageSize(). not accounted, the caller must hold a reservation
+	 * covering size. */
+	ByteBuffer allocate (int size)
+	{
+		for (BufferPool pool : pools)
+			if (pool.getBufferSize() >= size)
+				return pool.acquire();
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	void free (ByteBuffer storage)
+	{
+		if (!storage.isDirect())
+			return;
+		for (BufferPool pool : pools) {
+			if (storage.capacity() == pool.getBufferSize()) {
+				pool.release(storage);
+				return;
+			}
+		}
+	}
+}
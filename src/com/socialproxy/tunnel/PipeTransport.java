@@ -0,0 +1,177 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import com.socialproxy.util.CircularByteBuffer;
+
+/* One end of an in-memory carrier connection, for running two carriers in
+ * one JVM without the kernel in between, e.g. to benchmark the carrier
+ * itself. pair() makes both ends. Each direction is a bounded buffer; a
+ * write wakes the reader's selector if the buffer was empty and a read wakes
+ * the writer's if it was full, the other times the peer isn't waiting. */
+public class PipeTransport implements Transport
+{
+	public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+	/* one direction. guarded by itself */
+	private static class Pipe
+	{
+		final CircularByteBuffer buffer;
+		final byte [] scratch; // for buffers without an array
+		Selector reader;
+		Selector writer;
+		boolean closed = false; // by either end
+
+		Pipe (int capacity)
+		{
+			buffer = new CircularByteBuffer(capacity);
+			scratch = new byte [Math.min(capacity, 16384)];
+		}
+	}
+
+	private final Pipe in;
+	private final Pipe out;
+	private int interest = 0;
+
+	private PipeTransport (Pipe in, Pipe out)
+	{
+		this.in = in;
+		this.out = out;
+	}
+
+	/* two connected ends, each direction buffers capacity bytes */
+	public static PipeTransport [] pair (int capacity)
+	{
+		Pipe ab = new Pipe(capacity);
+		Pipe ba = new Pipe(capacity);
+		return new PipeTransport [] {new PipeTransport(ba, ab), new PipeTransport(ab, ba)};
+	}
+
+	public static PipeTransport [] pair ()
+	{
+		return pair(DEFAULT_CAPACITY);
+	}
+
+	@Override
+	public void register (Selector selector)
+	{
+		synchronized (in) {
+			in.reader = selector;
+		}
+		synchronized (out) {
+			out.writer = selector;
+		}
+	}
+
+	@Override
+	public void setInterest (int ops)
+	{
+		interest = ops;
+	}
+
+	@Override
+	public long nextDeadline ()
+	{
+		// like a level triggered selector, the peer wakes us otherwise
+		return poll() != 0 ? System.nanoTime() : 0;
+	}
+
+	@Override
+	public int poll ()
+	{
+		int ops = 0;
+		synchronized (in) {
+			if (!in.buffer.isEmpty() || in.closed)
+				ops |= SelectionKey.OP_READ;
+		}
+		synchronized (out) {
+			if (!out.buffer.isFull() || out.closed)
+				ops |= SelectionKey.OP_WRITE; // write() then says it's closed
+		}
+		return ops & interest;
+	}
+
+	@Override
+	public int read (ByteBuffer dst) throws IOException
+	{
+		Selector wake = null;
+		int total = 0;
+		synchronized (in) {
+			if (in.buffer.isEmpty())
+				return in.closed ? -1 : 0;
+			boolean wasFull = in.buffer.isFull();
+			while (dst.hasRemaining() && !in.buffer.isEmpty()) {
+				int size;
+				if (dst.hasArray()) {
+					size = in.buffer.get(dst.array(), dst.arrayOffset() + dst.position(),
+							dst.remaining());
+					dst.position(dst.position() + size);
+				} else {
+					size = in.buffer.get(in.scratch, 0, Math.min(dst.remaining(), in.scratch.length));
+					dst.put(in.scratch, 0, size);
+				}
+				total += size;
+			}
+			if (wasFull)
+				wake = in.writer;
+		}
+		if (wake != null)
+			wake.wakeup();
+		return total;
+	}
+
+	@Override
+	public long write (ByteBuffer [] srcs, int offset, int length) throws IOException
+	{
+		Selector wake = null;
+		long total = 0;
+		synchronized (out) {
+			if (out.closed)
+				throw new IOException("pipe closed");
+			boolean wasEmpty = out.buffer.isEmpty();
+			for (int i = offset; i < offset + length && !out.buffer.isFull(); i ++) {
+				ByteBuffer src = srcs[i];
+				while (src.hasRemaining() && !out.buffer.isFull()) {
+					int size;
+					if (src.hasArray()) {
+						size = out.buffer.put(src.array(), src.arrayOffset() + src.position(),
+								src.remaining());
+						src.position(src.position() + size);
+					} else {
+						int chunk = Math.min(Math.min(src.remaining(), out.buffer.getFree()),
+								out.scratch.length);
+						src.get(out.scratch, 0, chunk);
+						size = out.buffer.put(out.scratch, 0, chunk);
+					}
+					total += size;
+				}
+			}
+			if (wasEmpty && total > 0)
+				wake = out.reader;
+		}
+		if (wake != null)
+			wake.wakeup();
+		return total;
+	}
+
+	/* the peer reads what is buffered, then end of stream */
+	@Override
+	public void close ()
+	{
+		Selector wakeIn, wakeOut;
+		synchronized (in) {
+			in.closed = true;
+			wakeIn = in.writer;
+		}
+		synchronized (out) {
+			out.closed = true;
+			wakeOut = out.reader;
+		}
+		if (wakeIn != null)
+			wakeIn.wakeup();
+		if (wakeOut != null)
+			wakeOut.wakeup();
+	}
+}
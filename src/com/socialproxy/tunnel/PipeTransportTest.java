@@ -0,0 +1,87 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.CountDownLatch;
+
+public class PipeTransportTest
+{
+	/* both directions at once, each end in its own thread with its own
+	 * selector. a lost wakeup stalls pump() for 100ms, with a small
+	 * capacity that runs past the deadline. */
+	public static void testTransfer (final long size, int capacity) throws Exception
+	{
+		final PipeTransport [] pair = PipeTransport.pair(capacity);
+		final CountDownLatch done = new CountDownLatch(2);
+		final long deadline = System.nanoTime() + 60000000000L;
+		final Exception [] error = new Exception[1];
+		Thread peer = new Thread() {
+			@Override
+			public void run ()
+			{
+				try {
+					UDPTransportTest.pump(pair[1], size, 2, 1, done, deadline);
+				} catch (Exception x) {
+					error[0] = x;
+					done.countDown();
+					done.countDown();
+				}
+			}
+		};
+		peer.start();
+		try {
+			UDPTransportTest.pump(pair[0], size, 1, 2, done, deadline);
+		} finally {
+			peer.join();
+		}
+		if (error[0] != null)
+			throw new RuntimeException("capacity=" + capacity, error[0]);
+	}
+
+	/* the peer reads what was written before close(), then end of stream,
+	 * and can't write any more */
+	public static void testClose () throws IOException
+	{
+		PipeTransport [] pair = PipeTransport.pair(16);
+		Selector selector = Selector.open();
+		pair[1].register(selector);
+		pair[1].setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		ByteBuffer data = ByteBuffer.wrap("0123456789abcdefXYZ".getBytes());
+		long written = pair[0].write(new ByteBuffer [] {data}, 0, 1);
+		if (written != 16)
+			throw new RuntimeException("wrote " + written + " into 16");
+		int ops = pair[1].poll();
+		if (ops != (SelectionKey.OP_READ | SelectionKey.OP_WRITE))
+			throw new RuntimeException("poll()=" + ops);
+		pair[0].close();
+		ByteBuffer in = ByteBuffer.allocate(10);
+		int n = pair[1].read(in);
+		if (n != 10)
+			throw new RuntimeException("first read " + n);
+		in.clear();
+		n = pair[1].read(in);
+		if (n != 6)
+			throw new RuntimeException("second read " + n);
+		n = pair[1].read(in);
+		if (n != -1)
+			throw new RuntimeException("read " + n + " after close");
+		boolean closed = false;
+		try {
+			pair[1].write(new ByteBuffer [] {ByteBuffer.allocate(1)}, 0, 1);
+		} catch (IOException x) {
+			closed = true;
+		}
+		if (!closed)
+			throw new RuntimeException("wrote to a closed pipe");
+		selector.close();
+	}
+
+	public static void main (String [] args) throws Exception
+	{
+		testClose();
+		testTransfer(64 << 20, PipeTransport.DEFAULT_CAPACITY);
+		testTransfer(4 << 20, 100); // a wakeup for nearly every write
+	}
+}
@@ -0,0 +1,175 @@
+package com.socialproxy.tunnel;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/* Resolver looks up hostnames without blocking the caller, for Connector.
+ * The JDK resolver blocks, so lookups run on threads of their own, one
+ * per name being looked up: concurrent lookups of the same name share
+ * one, and a name whose DNS server is slow doesn't hold up the others
+ * unless there are MAX_THREADS such names. Idle threads go away. Results are cached for
+ * POSITIVE_TTL_MS, failures for NEGATIVE_TTL_MS. The JDK doesn't tell the
+ * records' TTLs, so these are fixed, and short enough for DNS that load
+ * balances by answer.
+ * IP address literals are answered at once in the caller's thread.
+ * Resolver is thread safe. */
+public final class Resolver
+{
+	/* gets the addresses of a name, or the error. called in a lookup
+	 * thread, or in the caller's thread if the answer is at hand. */
+	public interface Callback
+	{
+		void resolved (InetAddress [] addrs);
+		void failed (UnknownHostException x);
+	}
+
+	private final static Logger LOG = Logger.getLogger(Resolver.class.getName());
+	public static final long POSITIVE_TTL_MS = 60000;
+	public static final long NEGATIVE_TTL_MS = 10000;
+	private static final int MAX_ENTRIES = 4096;
+	private static final int MAX_THREADS = 64;
+	private static final long THREAD_IDLE_MS = 30000;
+	private static final Resolver GLOBAL = new Resolver(MAX_THREADS);
+
+	/* an answer, or a lookup in progress while waiters != null */
+	private static class Entry
+	{
+		InetAddress [] addrs;
+		UnknownHostException error;
+		long expires; // nanoTime
+		ArrayList<Callback> waiters = new ArrayList<Callback>();
+	}
+
+	private final ThreadPoolExecutor lookups;
+	// guarded by itself, least recently used first
+	private final LinkedHashMap<String, Entry> cache =
+		new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<String, Entry> eldest)
+			{
+				// a lookup in progress still answers its waiters
+				return size() > MAX_ENTRIES;
+			}
+		};
+
+	/* at most maxThreads lookups at a time, more wait for a thread */
+	public Resolver (int maxThreads)
+	{
+		// with core = max, every lookup gets a thread until there are maxThreads
+		lookups = new ThreadPoolExecutor(maxThreads, maxThreads,
+				THREAD_IDLE_MS, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+			@Override
+			public Thread newThread (Runnable task)
+			{
+				Thread thread = new Thread(task, "Resolver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		lookups.allowCoreThreadTimeOut(true);
+	}
+
+	/* the resolver shared by connectors that aren't given one */
+	public static Resolver global () {return GLOBAL;}
+
+	public void resolve (final String hostname, Callback callback)
+	{
+		if (isLiteral(hostname)) {
+			try {
+				// no lookup for a literal
+				callback.resolved(new InetAddress [] {InetAddress.getByName(hostname)});
+			} catch (UnknownHostException x) {
+				callback.failed(x);
+			}
+			return;
+		}
+
+		final Entry entry;
+		synchronized (cache) {
+			Entry cached = cache.get(hostname);
+			if (cached != null && cached.waiters != null) {
+				cached.waiters.add(callback);
+				return;
+			}
+			if (cached != null && cached.expires - System.nanoTime() > 0) {
+				entry = cached;
+			} else {
+				entry = new Entry();
+				entry.waiters.add(callback);
+				cache.put(hostname, entry);
+			}
+		}
+		if (entry.waiters == null) {
+			answer(entry, callback);
+			return;
+		}
+
+		lookups.execute(new Runnable() {
+			@Override
+			public void run ()
+			{
+				lookup(hostname, entry);
+			}
+		});
+	}
+
+	private void lookup (String hostname, Entry entry)
+	{
+		InetAddress [] addrs = null;
+		UnknownHostException error = null;
+		try {
+			addrs = InetAddress.getAllByName(hostname);
+		} catch (UnknownHostException x) {
+			error = x;
+		}
+		LOG.fine("resolved " + hostname + (error != null ? " failed" : " " + addrs.length));
+		ArrayList<Callback> waiters;
+		synchronized (cache) {
+			entry.addrs = addrs;
+			entry.error = error;
+			entry.expires = System.nanoTime() +
+				(error != null ? NEGATIVE_TTL_MS : POSITIVE_TTL_MS) * 1000000L;
+			waiters = entry.waiters;
+			entry.waiters = null;
+		}
+		for (Callback callback : waiters)
+			answer(entry, callback);
+	}
+
+	private static void answer (Entry entry, Callback callback)
+	{
+		if (entry.error != null)
+			callback.failed(entry.error);
+		else
+			callback.resolved(entry.addrs);
+	}
+
+	/* whether InetAddress.getByName() takes it without a lookup: IPv4
+	 * dotted decimal, or an IPv6 address, which has a colon */
+	static boolean isLiteral (String hostname)
+	{
+		if (hostname.isEmpty())
+			return false;
+		if (hostname.indexOf(':') >= 0)
+			return true;
+		int dots = 0;
+		for (int i = 0; i < hostname.length(); i ++) {
+			char c = hostname.charAt(i);
+			if (c == '.')
+				dots ++;
+			else if (c < '0' || c > '9')
+				return false;
+		}
+		return dots == 3;
+	}
+}
@@ -0,0 +1,353 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/* A SOCKS5 server (RFC 1928) in front of a CarrierGroup: CONNECT without
+ * authentication, to IPv4 and IPv6 addresses and hostnames.
+ * One thread accepts and reads the handshakes of all clients on a selector.
+ * The target then goes straight to CarrierGroup.createChannel(), and the
+ * SOCKS reply is written when the peer's CON2 comes, so a client sees
+ * whether the target could be connected. After the reply, the carrier
+ * relays the socket like that of any other channel. Data a client sends
+ * right after its request, without waiting for the reply, goes to the
+ * target first. */
+public class SocksServer extends Thread
+{
+	private final static Logger LOG = Logger.getLogger(SocksServer.class.getName());
+	// a client that hasn't sent its request by then is dropped
+	private static final long HANDSHAKE_TIMEOUT_MS = 10000;
+	// how long a request waits for a carrier being redialed
+	private static final long CARRIER_WAIT_MS = 5000;
+	private static final long RETRY_MS = 100;
+	// the largest greeting and the largest request, a client may send both at once
+	private static final int BUFFER_SIZE = (2 + 255) + (4 + 1 + 255 + 2);
+
+	private static final int VERSION = 5;
+	private static final int METHOD_NO_AUTH = 0;
+	private static final int METHOD_NONE_ACCEPTABLE = 0xff;
+	private static final int CMD_CONNECT = 1;
+	private static final int ATYP_IPV4 = 1;
+	private static final int ATYP_DOMAIN = 3;
+	private static final int ATYP_IPV6 = 4;
+	static final int REP_SUCCEEDED = 0;
+	static final int REP_GENERAL_FAILURE = 1;
+	static final int REP_NOT_ALLOWED = 2;
+	static final int REP_HOST_UNREACHABLE = 4;
+	static final int REP_COMMAND_NOT_SUPPORTED = 7;
+	static final int REP_ADDRESS_NOT_SUPPORTED = 8;
+
+	private final CarrierGroup carriers;
+	private final ServerSocketChannel serverSocket;
+	private final Selector selector;
+	private final int weight;
+	private final int priority;
+	// requests waiting for a carrier, only used by this thread
+	private final ArrayList<Client> waiting = new ArrayList<Client>();
+
+	public SocksServer (CarrierGroup carriers, InetSocketAddress listenAddr,
+			int weight, int priority) throws IOException
+	{
+		super("SocksServer " + listenAddr.getPort());
+		this.carriers = carriers;
+		this.weight = weight;
+		this.priority = priority;
+		serverSocket = ServerSocketChannel.open();
+		serverSocket.bind(listenAddr);
+		serverSocket.configureBlocking(false);
+		selector = Selector.open();
+		serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public SocksServer (CarrierGroup carriers, InetSocketAddress listenAddr) throws IOException
+	{
+		this(carriers, listenAddr, Carrier.DEFAULT_WEIGHT, Carrier.DEFAULT_PRIORITY);
+	}
+
+	int getLocalPort () throws IOException
+	{
+		return ((InetSocketAddress)serverSocket.getLocalAddress()).getPort();
+	}
+
+	@Override
+	public void run ()
+	{
+		try {
+			runInternal();
+		} catch (Exception x) {
+			LOG.log(Level.SEVERE, "SocksServer error", x);
+		}
+	}
+
+	private void runInternal () throws IOException
+	{
+		ArrayList<Client> ready = new ArrayList<Client>();
+		long nextSweep = System.nanoTime() + HANDSHAKE_TIMEOUT_MS * 1000000L;
+		while (true) {
+			selector.select(waiting.isEmpty() ? HANDSHAKE_TIMEOUT_MS : RETRY_MS);
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (!key.isValid())
+					continue;
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				Client client = (Client)key.attachment();
+				try {
+					if (client.read())
+						ready.add(client);
+				} catch (IOException x) {
+					LOG.fine("SOCKS handshake failed: " + x.getMessage());
+					client.close();
+				}
+			}
+
+			if (!ready.isEmpty()) {
+				// flush the cancelled keys, a blocking channel can't have any
+				selector.selectNow();
+				for (Client client : ready)
+					connect(client);
+				ready.clear();
+			}
+
+			long now = System.nanoTime();
+			if (!waiting.isEmpty())
+				retryWaiting(now);
+			if (now - nextSweep >= 0) {
+				for (SelectionKey key : selector.keys()) {
+					Client client = (Client)key.attachment();
+					if (client != null && now - client.deadline >= 0) {
+						LOG.fine("SOCKS handshake timed out");
+						client.close();
+					}
+				}
+				nextSweep = now + HANDSHAKE_TIMEOUT_MS * 1000000L;
+			}
+		}
+	}
+
+	private void accept () throws IOException
+	{
+		SocketChannel socket = serverSocket.accept();
+		if (socket == null)
+			return;
+		try {
+			socket.configureBlocking(false);
+			Client client = new Client(socket);
+			client.key = socket.register(selector, SelectionKey.OP_READ, client);
+		} catch (IOException x) {
+			LOG.log(Level.INFO, "failed to register SOCKS client", x);
+			try {socket.close();} catch (Exception y) {}
+		}
+	}
+
+	/* hand a complete request to a carrier, or wait for one */
+	private void connect (Client client)
+	{
+		if (carriers.size() == 0) {
+			client.deadline = System.nanoTime() + CARRIER_WAIT_MS * 1000000L;
+			waiting.add(client);
+			return;
+		}
+		boolean succeed = carriers.createChannel(client.socket, client.host, client.port,
+				weight, priority, client, client.firstData);
+		LOG.info("carriers.createChannel() " + client.host + ":" + client.port + " " +
+				(succeed ? "succeed" : "failed"));
+		if (!succeed)
+			client.fail(REP_GENERAL_FAILURE);
+	}
+
+	private void retryWaiting (long now)
+	{
+		for (Iterator<Client> it = waiting.iterator(); it.hasNext(); ) {
+			Client client = it.next();
+			if (carriers.size() != 0) {
+				it.remove();
+				connect(client);
+			} else if (now - client.deadline >= 0) {
+				it.remove();
+				LOG.severe("no carrier for SOCKS client");
+				client.fail(REP_GENERAL_FAILURE);
+			}
+		}
+	}
+
+	/* the reply to a request. the bound address is unknown here, it's on
+	 * the other side of the carrier, so it's always 0.0.0.0:0.
+	 * return false if the socket didn't take all of it. */
+	private static boolean reply (SocketChannel socket, int rep)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(10);
+		buf.put((byte)VERSION);
+		buf.put((byte)rep);
+		buf.put((byte)0);
+		buf.put((byte)ATYP_IPV4);
+		buf.rewind(); // the address and port are left zero
+		try {
+			// an unread socket has room for it, even if non-blocking
+			socket.write(buf);
+		} catch (IOException x) {
+			return false;
+		}
+		return !buf.hasRemaining();
+	}
+
+	/* the state of a client until the carrier answers its request */
+	private class Client implements Carrier.ConnectListener
+	{
+		final SocketChannel socket;
+		SelectionKey key;
+		final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+		boolean greeted = false;
+		long deadline = System.nanoTime() + HANDSHAKE_TIMEOUT_MS * 1000000L;
+		String host;
+		int port;
+		ByteBuffer firstData; // read after the request, null if none
+
+		Client (SocketChannel socket)
+		{
+			this.socket = socket;
+		}
+
+		/* read what's there and parse it.
+		 * return true when the request is complete and the socket is off
+		 * the selector. */
+		boolean read () throws IOException
+		{
+			if (socket.read(buf) < 0)
+				throw new IOException("closed during handshake");
+			buf.flip();
+			try {
+				if (!greeted && !parseGreeting())
+					return false;
+				if (!parseRequest())
+					return false;
+				// an optimistic client doesn't wait for the reply to send data
+				if (buf.hasRemaining()) {
+					firstData = ByteBuffer.allocate(buf.remaining());
+					firstData.put(buf).flip();
+				}
+			} finally {
+				buf.compact();
+			}
+			key.cancel();
+			return true;
+		}
+
+		private boolean parseGreeting () throws IOException
+		{
+			if (buf.remaining() < 2)
+				return false;
+			int nmethods = buf.get(buf.position() + 1) & 0xff;
+			if (buf.remaining() < 2 + nmethods)
+				return false;
+			if (buf.get() != VERSION)
+				throw new IOException("not SOCKS5");
+			buf.get();
+			boolean noAuth = false;
+			for (int i = 0; i < nmethods; i ++)
+				if (buf.get() == METHOD_NO_AUTH)
+					noAuth = true;
+			ByteBuffer answer = ByteBuffer.allocate(2);
+			answer.put((byte)VERSION);
+			answer.put((byte)(noAuth ? METHOD_NO_AUTH : METHOD_NONE_ACCEPTABLE));
+			answer.flip();
+			socket.write(answer);
+			if (answer.hasRemaining())
+				throw new IOException("can't write method selection");
+			if (!noAuth)
+				throw new IOException("client needs authentication");
+			greeted = true;
+			return true;
+		}
+
+		private boolean parseRequest () throws IOException
+		{
+			if (buf.remaining() < 5)
+				return false;
+			int start = buf.position();
+			int atyp = buf.get(start + 3) & 0xff;
+			int addrlen;
+			if (atyp == ATYP_IPV4)
+				addrlen = 4;
+			else if (atyp == ATYP_IPV6)
+				addrlen = 16;
+			else if (atyp == ATYP_DOMAIN)
+				addrlen = 1 + (buf.get(start + 4) & 0xff);
+			else {
+				reply(socket, REP_ADDRESS_NOT_SUPPORTED);
+				throw new IOException("unknown address type " + atyp);
+			}
+			if (buf.remaining() < 4 + addrlen + 2)
+				return false;
+			if (buf.get() != VERSION)
+				throw new IOException("not SOCKS5");
+			int cmd = buf.get() & 0xff;
+			buf.get(); // RSV
+			buf.get(); // ATYP
+			if (atyp == ATYP_IPV4) {
+				host = (buf.get() & 0xff) + "." + (buf.get() & 0xff) + "." +
+					(buf.get() & 0xff) + "." + (buf.get() & 0xff);
+			} else if (atyp == ATYP_DOMAIN) {
+				byte [] name = new byte[addrlen - 1];
+				buf.get();
+				buf.get(name);
+				host = new String(name, "UTF-8");
+			} else {
+				byte [] addr = new byte[16];
+				buf.get(addr);
+				host = InetAddress.getByAddress(addr).getHostAddress();
+			}
+			port = buf.getShort() & 0xffff;
+			if (cmd != CMD_CONNECT) {
+				reply(socket, REP_COMMAND_NOT_SUPPORTED);
+				throw new IOException("unsupported command " + cmd);
+			}
+			return true;
+		}
+
+		/* reply rep to the request and close. only after read() returned true. */
+		void fail (int rep)
+		{
+			reply(socket, rep);
+			try {socket.close();} catch (Exception x) {}
+		}
+
+		void close ()
+		{
+			key.cancel();
+			try {socket.close();} catch (Exception x) {}
+		}
+
+		@Override
+		public void connected (SocketChannel socket)
+		{
+			if (!reply(socket, REP_SUCCEEDED)) {
+				// the channel sees the close and tears down
+				LOG.info("failed to write SOCKS reply");
+				try {socket.close();} catch (Exception x) {}
+			}
+		}
+
+		@Override
+		public void rejected (SocketChannel socket, int reason)
+		{
+			reply(socket, reason == Carrier.REASON_NOT_ALLOWED ? REP_NOT_ALLOWED :
+					reason == Carrier.REASON_CONNECT_FAILED ? REP_HOST_UNREACHABLE :
+					REP_GENERAL_FAILURE);
+		}
+	}
+}
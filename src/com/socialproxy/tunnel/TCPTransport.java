@@ -0,0 +1,83 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/* a carrier over a TCP connection; TCP does all the work */
+public class TCPTransport implements Transport
+{
+	private final SocketChannel socket;
+	private SelectionKey key;
+
+	public TCPTransport (SocketChannel socket)
+	{
+		this.socket = socket;
+	}
+
+	/* two ends of a TCP connection over the loopback interface, to compare
+	 * with PipeTransport what the kernel costs */
+	public static TCPTransport [] loopbackPair () throws IOException
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			SocketChannel a = SocketChannel.open(server.getLocalAddress());
+			SocketChannel b = server.accept();
+			return new TCPTransport [] {new TCPTransport(a), new TCPTransport(b)};
+		} finally {
+			server.close();
+		}
+	}
+
+	@Override
+	public void register (Selector selector) throws IOException
+	{
+		socket.configureBlocking(false);
+		key = socket.register(selector, 0, this);
+	}
+
+	@Override
+	public void setInterest (int ops)
+	{
+		key.interestOps(ops);
+	}
+
+	@Override
+	public long nextDeadline ()
+	{
+		return 0;
+	}
+
+	@Override
+	public int poll ()
+	{
+		/* a key stays in the selected set until the carrier clears it,
+		 * and its ready ops are only updated when it is selected again */
+		int ops = key.selector().selectedKeys().contains(key) ? key.readyOps() : 0;
+		return ops & key.interestOps();
+	}
+
+	@Override
+	public int read (ByteBuffer dst) throws IOException
+	{
+		return socket.read(dst);
+	}
+
+	@Override
+	public long write (ByteBuffer [] srcs, int offset, int length) throws IOException
+	{
+		return socket.write(srcs, offset, length);
+	}
+
+	@Override
+	public void close () throws IOException
+	{
+		socket.close();
+	}
+}
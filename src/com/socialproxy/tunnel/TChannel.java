@@ -3,33 +3,77 @@ package com.socialproxy.tunnel;
 //import java.io.OutputStream;
 //import java.io.InputStream;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import com.socialproxy.util.BufferPool;
 import com.socialproxy.util.CircularByteBuffer;
+import com.socialproxy.util.TokenBucket;
 
 /* TChannel is responsible for relaying traffic between a connected local
- * socket and the carrier */
-public class TChannel implements Runnable
+ * socket and the carrier.
+ *
+ * A TChannel is driven in one of two ways:
+ * - register(): the local socket joins the carrier's selector and the carrier
+ *   thread calls onSelected() when it is ready. All methods are then called
+ *   in the carrier thread.
+ * - start(): the local socket is used in blocking mode by two tasks, one
+ *   per direction, running on the given executor. The tasks wait on
+ *   sendChanged and recvChanged for the carrier. These are locks and
+ *   conditions rather than monitors, since a virtual thread that waits
+ *   on a monitor pins its carrier thread. */
+public class TChannel
 {
 	private final static Logger LOG = Logger.getLogger(TChannel.class.getName());
+	private static final ByteBuffer NO_STORAGE = ByteBuffer.allocate(0);
+	private static final long IDLE_RELEASE_NS = 1000000000L;
+	/* writeLoop() copies out of recvbuf into a direct buffer, which the
+	 * socket writes without another copy by the JDK */
+	private static final BufferPool WRITEBUF_POOL = new BufferPool(Carrier.MAX_DATASIZE, 64, true);
 	private final Carrier carrier;
 	private final int channelID;
 	private final ByteBuffer         sendbuf; // from local socket to carrier
 	private final CircularByteBuffer recvbuf; // from carrier to local socket
+	private final ReentrantLock sendLock = new ReentrantLock(); // guards sendbuf
+	private final Condition sendChanged = sendLock.newCondition();
+	private final ReentrantLock recvLock = new ReentrantLock(); // guards recvbuf
+	private final Condition recvChanged = recvLock.newCondition();
+	/* recvbuf's direct memory, guarded by recvLock. it is only allocated
+	 * when DATA arrives and given back when recvbuf is drained and the
+	 * channel idle, so an idle channel holds no receive buffer. */
+	private ByteBuffer recvStorage = NO_STORAGE;
+	private boolean recvbufFreed = false; // guarded by recvLock
 	private final SocketChannel socket;
-	private boolean closed = false;
-	private final Selector selector;
+	private volatile boolean closed = false;
+	/* the peer has torn the channel down, but recvbuf still has DATA that
+	 * came before the TRDN. the socket is closed once that is written.
+	 * the slot is freed meanwhile, so nothing may go to the carrier. */
+	private volatile boolean draining = false;
+	/* the local socket has reached end of stream while sendbuf still had
+	 * data. guarded by sendLock. the TRDN waits until sendToCarrier() has
+	 * taken the rest, since control messages go before DATA. */
+	private boolean localEof = false;
+	private SelectionKey evkey; // only in event loop mode
+	private volatile boolean started = false; // in executor mode
+	private final TokenBucket rateLimit; // for local socket reads, null if unlimited
+	/* in event loop mode, the nanoTime until which we don't read the local
+	 * socket because rateLimit is empty. 0 if not throttled. */
+	long throttledUntil = 0;
 
 	/* myUnsendAck: number of bytes that has not been acked to the peer.
 	 * initially = 0
-	 * increase when local socket consumes data
+	 * increase when local socket consumes data or the window grows
 	 * decrease when sending ack
-	 * always 0 <= myUnsendAck <= my recvbuf size */
+	 * always 0 <= myUnsendAck <= window */
 	private final AtomicInteger myUnsendAck;
 
 	/* peerFreeRecvbuf: number of bytes that is free in peer's receiving buffer.
@@ -37,35 +81,84 @@ public class TChannel implements Runnable
 	 * initially = peer recvbuf size
 	 * increase when we receive ack
 	 * decrease when we send data (put data to sendbuf)
-	 * always: 0 <= peerFreeRecvbuf <= peer recvbuf size */
+	 * always: 0 <= peerFreeRecvbuf <= peer's window */
 	private final AtomicInteger peerFreeRecvbuf;
 
+	/* Receive window auto-tuning. The window is the number of bytes the
+	 * peer may have sent but we haven't consumed. It starts at the initial
+	 * window the carrier reserved for us. Every RTT we check if the peer
+	 * sent nearly a full window while the local socket kept up; if so the
+	 * window is limiting throughput and we double it by acking more than
+	 * was consumed. An idle channel goes back to the initial window, and
+	 * all channels halve theirs while memory is tight, by holding back acks
+	 * (shrinkDebt). The peer may send up to window + shrinkDebt bytes, which
+	 * is what we have reserved from the carrier and what recvbuf may need.
+	 * All of these are guarded by recvLock. */
+	private static final long MIN_EPOCH_NS = 10000000L;
+	private static final long IDLE_SHRINK_NS = 10000000000L;
+	private final int initialWindow;
+	private int window;
+	private int shrinkDebt;
+	private long epochStart;
+	private long epochBytes;
+	private long lastDataNanos;
+
+	/* recvWindow has been reserved by the carrier,
+	 * the channel releases it when closed */
 	public TChannel (Carrier carrier, int channelID,
-			int sendbufSize, int recvbufSize, int peerRecvbufSize,
+			int sendbufSize, int recvWindow, int peerRecvbufSize,
 			SocketChannel socket)
 	{
 		this.carrier = carrier;
 		this.channelID = channelID;
 		sendbuf = ByteBuffer.allocate(sendbufSize);
-		recvbuf = new CircularByteBuffer(recvbufSize);
+		recvbuf = new CircularByteBuffer(recvStorage);
+		rateLimit = carrier.newChannelRateLimit();
+		initialWindow = window = recvWindow;
+		epochStart = lastDataNanos = System.nanoTime();
 		this.socket = socket;
-		try {
-			selector = Selector.open();
-		} catch (IOException x) {
-			throw new RuntimeException(x);
-		}
 
 		myUnsendAck = new AtomicInteger(0);
 		peerFreeRecvbuf = new AtomicInteger(peerRecvbufSize);
 		LOG.fine("TC" + channelID + " TChannel()");
 	}
 
-	/* called by carrier when it receives TRDN */
+	/* called by carrier when it receives TRDN. what the peer sent before
+	 * is still written to the local socket. */
 	public void onTRDN ()
 	{
 		LOG.fine("TC" + channelID + " onTRDN()");
+		recvLock.lock();
+		try {
+			// writeLoop() may be writing what it has taken from recvbuf
+			if (!recvbufFreed && (!recvbuf.isEmpty() || started))
+				draining = true;
+		} finally {
+			recvLock.unlock();
+		}
+		if (!draining) {
+			closed = true;
+			closeSocket();
+		}
+		wakeup();
+	}
+
+	/* called by carrier when the channel goes without a TRDN: the carrier
+	 * closes, or the peer rejected a channel that sent early data */
+	void abort ()
+	{
+		LOG.fine("TC" + channelID + " abort()");
 		closed = true;
-		selector.wakeup();
+		closeSocket();
+		wakeup();
+	}
+
+	/* called by carrier when the CON2 of a channel that sent early data
+	 * comes. the peer's window replaces the early data credit. */
+	void onConnected (int peerWindow)
+	{
+		peerFreeRecvbuf.addAndGet(peerWindow - Carrier.EARLY_DATA_CREDIT);
+		wakeup();
 	}
 
 	/* called by carrier when it receives DATA
@@ -75,12 +168,18 @@ public class TChannel implements Runnable
 	{
 		assert size > 0;
 		assert ack >= 0;
-		synchronized (recvbuf) {
+		boolean grown;
+		recvLock.lock();
+		try {
+			if (recvbufFreed)
+				return;
+			if (recvbuf.getFree() < size)
+				growStorage();
 			// the ack mechanism guarantees recvbuf has enough free space
 			if (recvbuf.getFree() < size) {
 				LOG.warning("TC" + channelID + " recvbuf.getFree()=" + recvbuf.getFree() + " < datasize=" + size);
 				closed = true;
-				selector.wakeup();
+				wakeup();
 				throw new CarrierProtocolException("receive buffer overflow");
 			} else {
 				int putsize = recvbuf.put(data, offset, size);
@@ -89,12 +188,102 @@ public class TChannel implements Runnable
 						"new recvbuf:" + recvbuf.getUsed() +
 						"u/" + recvbuf.getFree() + "f");
 			}
+			grown = autoTune(size);
+		} finally {
+			recvLock.unlock();
 		}
+		if (grown)
+			carrier.channelSendAck(channelID);
 		if (ack > 0) {
 			int newvalue = peerFreeRecvbuf.addAndGet(ack);
 			LOG.finer("TC" + channelID + " onDATA() ack=" + ack + ", new peerFreeRecvbuf=" + newvalue);
 		}
-		selector.wakeup();
+		wakeup();
+	}
+
+	/* called with recvLock held when size bytes are received.
+	 * return true if the window has grown. */
+	private boolean autoTune (int size)
+	{
+		long now = System.nanoTime();
+		lastDataNanos = now;
+		epochBytes += size;
+		long rtt = carrier.getRttNanos();
+		long epochLen = now - epochStart;
+		if (rtt == 0 || epochLen < rtt || epochLen < MIN_EPOCH_NS)
+			return false;
+		// bytes received per RTT in this epoch
+		long perRtt = epochBytes * rtt / epochLen;
+		epochStart = now;
+		epochBytes = 0;
+		if (perRtt < window / 4 * 3 || recvbuf.getUsed() >= window / 2 ||
+				window >= Carrier.MAX_CHANNEL_WINDOW || shrinkDebt > 0)
+			return false;
+
+		int newWindow = Math.min(window * 2, Carrier.MAX_CHANNEL_WINDOW);
+		if (!carrier.tryReserveWindow(newWindow - window)) {
+			LOG.fine("TC" + channelID + " window budget exhausted at " + window);
+			return false;
+		}
+		myUnsendAck.addAndGet(newWindow - window);
+		LOG.fine("TC" + channelID + " window " + window + " -> " + newWindow +
+				", rtt=" + rtt / 1000 + "us");
+		window = newWindow;
+		return true;
+	}
+
+	/* called by carrier in carrier thread about once a second while it is
+	 * busy. return true if there is something to do on later ticks, i.e.
+	 * memory to give back. */
+	boolean onTick ()
+	{
+		recvLock.lock();
+		try {
+			if (recvbufFreed)
+				return false;
+			long idle = System.nanoTime() - lastDataNanos;
+			int target = window;
+			if (idle >= IDLE_SHRINK_NS)
+				target = Math.min(target, initialWindow);
+			if (carrier.isMemoryTight())
+				target = Math.min(target, Math.max(window / 2, Carrier.MIN_CHANNEL_WINDOW));
+			if (target < window) {
+				LOG.fine("TC" + channelID + " window " + window + " -> " + target +
+						(idle >= IDLE_SHRINK_NS ? ", idle" : ", memory tight"));
+				shrinkDebt += window - target;
+				window = target;
+			}
+			trimStorage(idle >= IDLE_RELEASE_NS);
+			return window > initialWindow || recvStorage != NO_STORAGE ||
+				(window > Carrier.MIN_CHANNEL_WINDOW && carrier.isMemoryTight());
+		} finally {
+			recvLock.unlock();
+		}
+	}
+
+	/* called with recvLock held. make recvbuf large enough for all the
+	 * peer may send. */
+	private void growStorage ()
+	{
+		int size = window + shrinkDebt;
+		if (recvbuf.getSize() >= size)
+			return;
+		ByteBuffer storage = carrier.allocChannelRecvbuf(size);
+		carrier.freeChannelRecvbuf(recvbuf.moveTo(storage));
+		recvStorage = storage;
+	}
+
+	/* called with recvLock held. give back the storage of an empty
+	 * recvbuf if the channel is idle or the window has finished shrinking
+	 * below its size class; growStorage() allocates it again when needed. */
+	private void trimStorage (boolean idle)
+	{
+		if (!recvbuf.isEmpty() || recvStorage == NO_STORAGE)
+			return;
+		if (idle || (shrinkDebt == 0 && recvbuf.getSize() > carrier.channelRecvbufSize(window))) {
+			carrier.freeChannelRecvbuf(recvbuf.moveTo(NO_STORAGE));
+			recvStorage = NO_STORAGE;
+		}
 	}
 
 	/* called by carrier when it receives ack. in bytes */
@@ -103,25 +292,41 @@ public class TChannel implements Runnable
 		assert ack > 0;
 		int newvalue = peerFreeRecvbuf.addAndGet(ack);
 		LOG.finer("TC" + channelID + " onAck() ack=" + ack + ", new peerFreeRecvbuf=" + newvalue);
-		selector.wakeup();
+		wakeup();
 	}
 
 	/* called by carrier.
-	 * return bytes transfered to dst.
+	 * return bytes transfered to dst, at most max.
 	 * dst should have enough space. */
-	public int sendToCarrier (ByteBuffer dst)
+	public int sendToCarrier (ByteBuffer dst, int max)
 	{
 		int size;
-		synchronized (sendbuf) {
+		boolean more;
+		boolean eof;
+		sendLock.lock();
+		try {
 			if (sendbuf.position() == 0)
 				return 0;
 			sendbuf.flip();
+			int end = sendbuf.limit();
+			if (end > max)
+				sendbuf.limit(max);
 			dst.put(sendbuf);
 			size = sendbuf.position();
+			sendbuf.limit(end);
 			sendbuf.compact();
+			more = sendbuf.position() > 0;
+			eof = localEof && !more;
+		} finally {
+			sendLock.unlock();
 		}
 		LOG.finer("TC" + channelID + " sendToCarrier() return " + size);
-		selector.wakeup();
+		if (more)
+			carrier.channelSend(channelID);
+		if (eof)
+			localClose();
+		else
+			wakeup();
 		return size;
 	}
 
@@ -139,99 +344,436 @@ public class TChannel implements Runnable
 			if (decrement > Carrier.MAX_ACK) decrement = Carrier.MAX_ACK;
 		} while (!myUnsendAck.compareAndSet(oldval, oldval - decrement * Carrier.ACK_UNIT));
 		LOG.finer("TC" + channelID + " sendAckToCarrier() oldval=" + oldval + ", decrement=" + decrement + "*" + Carrier.ACK_UNIT);
+		// a grown window can leave more than one ack message's worth
+		if (decrement == Carrier.MAX_ACK && oldval - decrement * Carrier.ACK_UNIT >= Carrier.ACK_UNIT)
+			carrier.channelSendAck(channelID);
 		return decrement;
 	}
 
-	private void runInternal () throws Exception
+	/* called by carrier in carrier thread to serve this channel from the
+	 * carrier's selector instead of a thread of its own */
+	void register (Selector carrierSelector)
+	{
+		try {
+			socket.configureBlocking(false);
+			evkey = socket.register(carrierSelector, 0, this);
+		} catch (IOException x) {
+			LOG.log(Level.INFO, "TC" + channelID + " failed to register local socket", x);
+			localClose();
+			return;
+		}
+		if (closed)
+			closeSocket();
+		else
+			evkey.interestOps(interestOps());
+	}
+
+	/* called by carrier in carrier thread when the local socket is ready */
+	void onSelected ()
+	{
+		if (closed) {
+			closeSocket();
+			return;
+		}
+		try {
+			if (evkey.isReadable() && !readSocket())
+				return;
+			if (evkey.isValid() && evkey.isWritable() && !writeSocket())
+				return;
+		} catch (IOException x) {
+			LOG.log(Level.INFO, "TC" + channelID + " local socket error", x);
+			localClose();
+			return;
+		}
+		if (evkey.isValid())
+			evkey.interestOps(interestOps());
+	}
+
+	/* called by carrier in carrier thread when throttledUntil has come */
+	void onThrottleExpired ()
+	{
+		throttledUntil = 0;
+		wakeup();
+	}
+
+	/* let whoever drives this channel reconsider what it is waiting for */
+	private void wakeup ()
+	{
+		if (evkey != null) {
+			if (closed)
+				closeSocket();
+			else if (evkey.isValid())
+				evkey.interestOps(interestOps());
+		} else {
+			sendLock.lock();
+			try {
+				sendChanged.signalAll();
+			} finally {
+				sendLock.unlock();
+			}
+			recvLock.lock();
+			try {
+				recvChanged.signalAll();
+			} finally {
+				recvLock.unlock();
+			}
+		}
+	}
+
+	private int interestOps ()
+	{
+		int selops = 0;
+		if (peerFreeRecvbuf.get() > 0 && sendbuf.hasRemaining() && throttledUntil == 0 &&
+				!draining && !localEof)
+			selops |= SelectionKey.OP_READ;
+		if (!recvbuf.isEmpty())
+			selops |= SelectionKey.OP_WRITE;
+		return selops;
+	}
+
+	private void closeSocket ()
+	{
+		try {
+			socket.close();
+		} catch (IOException x) {}
+		recvLock.lock();
+		try {
+			if (!recvbufFreed) {
+				recvbufFreed = true;
+				carrier.freeChannelRecvbuf(recvStorage);
+				recvStorage = NO_STORAGE;
+				carrier.releaseWindow(window + shrinkDebt);
+			}
+		} finally {
+			recvLock.unlock();
+		}
+	}
+
+	/* the local socket is finished. tell the carrier unless the peer
+	 * has already torn the channel down. */
+	private void localClose ()
 	{
-		socket.configureBlocking(false);
-		SelectionKey selkey = socket.register(selector, 0);
+		if (!closed && !draining) {
+			closed = true;
+			carrier.channelClose(channelID);
+		}
+		closeSocket();
+		wakeup();
+	}
+
+	/* the local socket has reached end of stream */
+	private void localEof ()
+	{
+		sendLock.lock();
+		try {
+			if (sendbuf.position() > 0 && !closed && !draining) {
+				localEof = true;
+				return;
+			}
+		} finally {
+			sendLock.unlock();
+		}
+		localClose();
+	}
+
+	/* read from local socket into sendbuf.
+	 * return false if the local socket is closed. */
+	private boolean readSocket () throws IOException
+	{
+		if (readFrom(socket) == -1) {
+			localEof();
+			if (evkey.isValid())
+				evkey.interestOps(interestOps());
+			return false;
+		}
+		return true;
+	}
+
+	/* read src into sendbuf, as far as the peer's window and rateLimit
+	 * allow, and tell the carrier. src is the local socket in event loop
+	 * mode; the benchmarks in bench/ pass their own, see
+	 * Carrier.benchConnect(). return the bytes read, -1 at end of stream. */
+	int readFrom (ReadableByteChannel src) throws IOException
+	{
+		if (peerFreeRecvbuf.get() <= 0 || draining)
+			return 0;
+		if (rateLimit != null) {
+			long now = System.nanoTime();
+			long delay = rateLimit.delayNanos(now);
+			if (delay > 0) {
+				throttledUntil = now + delay;
+				carrier.throttleChannel(this);
+				return 0;
+			}
+		}
+		int size = 0;
+		sendLock.lock();
+		try {
+			if (sendbuf.hasRemaining()) {
+				// has to limit the bytes received from socket by peerFreeRecvbuf
+				int remaining = peerFreeRecvbuf.get();
+				if (sendbuf.remaining() > remaining)
+					sendbuf.limit(sendbuf.position() + remaining);
+				size = src.read(sendbuf);
+				LOG.finer("TC" + channelID + " read " + size + " bytes (limit=" + remaining + ") from local socket");
+				sendbuf.limit(sendbuf.capacity());
+			}
+		} finally {
+			sendLock.unlock();
+		}
+		if (size > 0)
+			filled(size);
+		return size;
+	}
+
+	/* size bytes from the local socket have been put in sendbuf */
+	private void filled (int size)
+	{
+		if (rateLimit != null)
+			rateLimit.take(size);
+		int newvalue = peerFreeRecvbuf.addAndGet(-size);
+		assert newvalue >= 0;
+		carrier.channelSend(channelID);
+	}
+
+	/* called by carrier before the channel runs: data goes to the peer
+	 * ahead of what the local socket gives. it fits sendbuf and the
+	 * peer's window. */
+	void sendFirst (ByteBuffer data)
+	{
+		int size = data.remaining();
+		sendLock.lock();
+		try {
+			sendbuf.put(data);
+		} finally {
+			sendLock.unlock();
+		}
+		filled(size);
+	}
+
+	/* write recvbuf to local socket.
+	 * return false if the local socket is closed. */
+	private boolean writeSocket ()
+	{
+		if (recvbuf.isEmpty())
+			return true;
+		int size;
+		try {
+			size = writeTo(socket);
+		} catch (IOException x) {
+			size = -1;
+			LOG.log(Level.INFO, "Exception while writing to local socket", x);
+		}
+		if (size == -1) {
+			localClose();
+			return false;
+		}
+		if (draining && recvbuf.isEmpty()) {
+			closed = true;
+			closeSocket();
+			return false;
+		}
+		return true;
+	}
+
+	/* write recvbuf to dst and ack what it took. dst is the local socket
+	 * in event loop mode, or the benchmarks' own, like readFrom().
+	 * return the bytes written, -1 if recvbuf is gone. */
+	int writeTo (WritableByteChannel dst) throws IOException
+	{
+		int size;
+		recvLock.lock();
+		try {
+			if (recvbufFreed)
+				return -1;
+			size = recvbuf.get(dst, -1);
+			LOG.finer("TC" + channelID + " write " + size + " bytes to local socket");
+		} finally {
+			recvLock.unlock();
+		}
+		if (size > 0)
+			consumed(size);
+		return size;
+	}
+
+	/* size bytes of recvbuf have been written to the local socket */
+	private void consumed (int size)
+	{
+		int threshold;
+		recvLock.lock();
+		try {
+			if (recvbufFreed)
+				return;
+			if (shrinkDebt > 0) {
+				int withheld = Math.min(shrinkDebt, size);
+				shrinkDebt -= withheld;
+				size -= withheld;
+				carrier.releaseWindow(withheld);
+			}
+			trimStorage(false);
+			threshold = window / 20;
+		} finally {
+			recvLock.unlock();
+		}
+		if (size == 0 || draining)
+			return;
+		int newval = myUnsendAck.addAndGet(size);
+		// keep silent if recvbuf is %95 free
+		if (newval >= Carrier.ACK_UNIT && newval >= threshold)
+			carrier.channelSendAck(channelID);
+	}
+
+	/* called by carrier to serve this channel with blocking I/O on two
+	 * tasks of the given executor */
+	void start (Executor executor)
+	{
+		try {
+			socket.configureBlocking(true);
+		} catch (IOException x) {
+			LOG.log(Level.INFO, "TC" + channelID + " failed to configure local socket", x);
+			localClose();
+			return;
+		}
+		started = true;
+		executor.execute(new Runnable() {
+			@Override
+			public void run ()
+			{
+				Thread.currentThread().setName("TC" + channelID + "r");
+				readLoop();
+			}
+		});
+		executor.execute(new Runnable() {
+			@Override
+			public void run ()
+			{
+				Thread.currentThread().setName("TC" + channelID + "w");
+				writeLoop();
+			}
+		});
+	}
+
+	/* local socket -> sendbuf, in executor mode */
+	private void readLoop ()
+	{
+		// the blocking read happens outside sendLock
+		// so that the carrier is never stalled by it.
+		ByteBuffer readbuf = ByteBuffer.allocate(sendbuf.capacity());
 		while (true) {
-			int selops = 0;
-			if (peerFreeRecvbuf.get() > 0 && sendbuf.hasRemaining())
-				selops |= SelectionKey.OP_READ;
-			LOG.finer("TC" + channelID + " peerFreeRecvbuf=" +
-					peerFreeRecvbuf.get() + " sendbuf.remaining=" +
-					sendbuf.remaining());
-			if (!recvbuf.isEmpty())
-				selops |= SelectionKey.OP_WRITE;
-			selkey.interestOps(selops);
-			LOG.finer("TC" + channelID + " selecting " +
-					((selops & SelectionKey.OP_READ) == 0 ? "" : "r") +
-					((selops & SelectionKey.OP_WRITE) == 0 ? "" : "w"));
-			selector.select();
-			LOG.finer("TC" + channelID + " selected " +
-					(closed ? "c" : "") +
-					(selkey.isReadable() ? "r" : "") +
-					(selkey.isWritable() ? "w" : ""));
-			if (closed) {
-				socket.close();
-				selector.close();
-				break;
-			}
-
-			if (selector.selectedKeys().size() == 1 &&
-					selkey.isReadable() &&
-					peerFreeRecvbuf.get() > 0) {
-				int size = 0;
-				synchronized (sendbuf) {
-					if (sendbuf.hasRemaining()) {
-						// has to limit the bytes received from socket by peerFreeRecvbuf
-						int remaining = peerFreeRecvbuf.get();
-						if (sendbuf.remaining() > remaining)
-							sendbuf.limit(sendbuf.position() + remaining);
-						size = socket.read(sendbuf);
-						LOG.finer("TC" + channelID + " read " + size + " bytes (limit=" + remaining + ") from local socket");
-						sendbuf.limit(sendbuf.capacity());
-					}
-				}
-				if (size == -1) {
-					carrier.channelClose(channelID);
-					socket.close();
-					selector.close();
-					break;
-				} else if (size > 0) {
-					int newvalue = peerFreeRecvbuf.addAndGet(-size);
-					assert newvalue >= 0;
-					carrier.channelSend(channelID);
+			int room;
+			sendLock.lock();
+			try {
+				try {
+					while (!closed && !draining &&
+							(peerFreeRecvbuf.get() <= 0 || !sendbuf.hasRemaining()))
+						sendChanged.await();
+				} catch (InterruptedException x) {
+					Thread.currentThread().interrupt();
+					localClose();
+					return;
 				}
+				room = Math.min(sendbuf.remaining(), peerFreeRecvbuf.get());
+			} finally {
+				sendLock.unlock();
 			}
-
-			if (selector.selectedKeys().size() == 1 &&
-					selkey.isWritable() &&
-					!recvbuf.isEmpty()) {
-				int size = 0;
-				synchronized (recvbuf) {
+			if (closed || draining)
+				return;
+			if (rateLimit != null) {
+				long delay = rateLimit.delayNanos(System.nanoTime());
+				if (delay > 0) {
 					try {
-						size = recvbuf.get(socket, -1);
-					} catch (IOException x) {
-						size = -1;
-						LOG.log(Level.INFO, "Exception while writing to local socket", x);
+						Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+					} catch (InterruptedException x) {
+						Thread.currentThread().interrupt();
+						localClose();
+						return;
 					}
-					LOG.finer("TC" + channelID + " write " + size + " bytes to local socket");
+					continue;
 				}
-				if (size == -1) {
-					carrier.channelClose(channelID);
-					socket.close();
-					selector.close();
-					break;
-				} else if (size > 0) {
-					int newval = myUnsendAck.addAndGet(size);
-					// keep silent if recvbuf is %95 free
-					if (newval >= Carrier.ACK_UNIT && newval >= recvbuf.getSize() / 20)
-						carrier.channelSendAck(channelID);
+			}
+
+			readbuf.clear();
+			readbuf.limit(room);
+			int size;
+			try {
+				size = socket.read(readbuf);
+			} catch (IOException x) {
+				if (!closed)
+					LOG.log(Level.INFO, "TC" + channelID + " exception while reading local socket", x);
+				localClose();
+				return;
+			}
+			LOG.finer("TC" + channelID + " read " + size + " bytes (limit=" + room + ") from local socket");
+			if (size == -1) {
+				localEof();
+				return;
+			} else if (size > 0) {
+				if (draining)
+					return;
+				readbuf.flip();
+				sendLock.lock();
+				try {
+					// only this task adds to sendbuf, so room is still there
+					sendbuf.put(readbuf);
+				} finally {
+					sendLock.unlock();
 				}
+				filled(size);
 			}
 		}
 	}
 
-	@Override
-	public void run ()
+	/* recvbuf -> local socket, in executor mode */
+	private void writeLoop ()
 	{
+		ByteBuffer writebuf = WRITEBUF_POOL.acquire();
 		try {
-			runInternal();
-		} catch (Exception x) {
-			throw new RuntimeException(x);
+			writeLoop(writebuf);
+		} finally {
+			WRITEBUF_POOL.release(writebuf);
+		}
+	}
+
+	private void writeLoop (ByteBuffer writebuf)
+	{
+		while (true) {
+			recvLock.lock();
+			try {
+				try {
+					while (!closed && !draining && recvbuf.isEmpty())
+						recvChanged.await();
+				} catch (InterruptedException x) {
+					Thread.currentThread().interrupt();
+					localClose();
+					return;
+				}
+				if (closed)
+					return;
+				if (recvbuf.isEmpty()) {
+					// draining and done
+					closed = true;
+					closeSocket();
+					return;
+				}
+				writebuf.clear();
+				recvbuf.get(writebuf);
+				writebuf.flip();
+			} finally {
+				recvLock.unlock();
+			}
+
+			int size = writebuf.remaining();
+			try {
+				while (writebuf.hasRemaining())
+					socket.write(writebuf);
+			} catch (IOException x) {
+				if (!closed)
+					LOG.log(Level.INFO, "Exception while writing to local socket", x);
+				localClose();
+				return;
+			}
+			LOG.finer("TC" + channelID + " write " + size + " bytes to local socket");
+			consumed(size);
 		}
 	}
 }
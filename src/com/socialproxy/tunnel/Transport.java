@@ -0,0 +1,44 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+
+/* The reliable byte stream a carrier runs over: TCPTransport, UDPTransport,
+ * or PipeTransport between two carriers in one JVM.
+ * All methods except close() are called in the carrier thread, after
+ * register(). The carrier waits in select() on its own selector, so a
+ * transport either registers a channel there or wakes the selector up
+ * itself. Read and write are non-blocking like SocketChannel's.
+ *
+ * Each round of the carrier loop goes:
+ *   setInterest(ops); select until nextDeadline(); ops = poll(); then
+ *   read() if ops has OP_READ, write() if ops has OP_WRITE.
+ * so a transport with its own timers (retransmission, pacing) does that
+ * work in poll(). */
+public interface Transport
+{
+	/* register with the carrier's selector */
+	void register (Selector selector) throws IOException;
+
+	/* the SelectionKey.OP_READ and OP_WRITE the carrier waits for */
+	void setInterest (int ops);
+
+	/* the nanoTime the carrier must call poll() by even if the selector
+	 * isn't woken, 0 if none */
+	long nextDeadline ();
+
+	/* called after every select(). do pending work and return which of
+	 * OP_READ and OP_WRITE the carrier can do now. OP_READ is also
+	 * returned at end of stream, so that read() can report it. */
+	int poll () throws IOException;
+
+	/* as in ReadableByteChannel: -1 at end of stream */
+	int read (ByteBuffer dst) throws IOException;
+
+	/* as in GatheringByteChannel */
+	long write (ByteBuffer [] srcs, int offset, int length) throws IOException;
+
+	/* can be called in any thread */
+	void close () throws IOException;
+}
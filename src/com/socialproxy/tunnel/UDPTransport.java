@@ -0,0 +1,938 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/* A carrier over UDP, for lossy long-haul links where TCP takes every loss
+ * for congestion and backs off. It gives the carrier the same reliable byte
+ * stream as TCP, with:
+ *   - selective acks. The receiver acks ranges of packet numbers, and lost
+ *     data goes again in a packet with a new number, so a late ack is never
+ *     mistaken for the ack of a retransmission (as in QUIC).
+ *   - loss detection by packet and time thresholds, and a probe timeout for
+ *     losses at the tail (RFC 9002).
+ *   - pacing and congestion control by BBRControl, which doesn't back off
+ *     on random loss.
+ *   - flow control. The receiver advertises the stream offset up to which
+ *     it takes data.
+ * A connection starts with HELLO from connect() to a Listener, which answers
+ * with HELLO_ACK. All connections of a Listener go over its one socket and
+ * are told apart by the peer's address, so a client behind a NAT is only
+ * ever answered from the address its HELLO went to, and only the Listener's
+ * port needs to be reachable.
+ * There is no encryption or authentication here, the carrier does that.
+ *
+ * Packets, all integers in network byte order:
+ *   HELLO, HELLO_ACK: type(1), nonce(8)
+ *   DATA:  type(1), packet number(8), stream offset(8), data
+ *   ACK:   type(1), largest packet number(8), ack delay in microseconds(4),
+ *          stream offset the receiver takes data up to(8), range count(1),
+ *          ranges of received packet numbers, highest first: last(8), first(8)
+ *   CLOSE: type(1)
+ * Only DATA is acked. A DATA without data probes for an ack. */
+public class UDPTransport implements Transport
+{
+	private final static Logger LOG = Logger.getLogger(UDPTransport.class.getName());
+	private static final byte TYPE_HELLO = 1;
+	private static final byte TYPE_HELLO_ACK = 2;
+	private static final byte TYPE_DATA = 3;
+	private static final byte TYPE_ACK = 4;
+	private static final byte TYPE_CLOSE = 5;
+	// fits a 1500 byte MTU with room for IPv6 and tunnels
+	private static final int MAX_PACKET = 1400;
+	private static final int DATA_HEADER = 17;
+	private static final int ACK_HEADER = 22;
+	private static final int MSS = MAX_PACKET - DATA_HEADER;
+	private static final int MAX_ACK_RANGES = 32;
+	private static final int PACKET_THRESHOLD = 3;
+	private static final int SEND_BUFFER = 8 << 20; // written but not acked
+	private static final int RECV_WINDOW = 8 << 20;
+	private static final long MAX_ACK_DELAY_NS = 5000000L;
+	private static final long INITIAL_RTT_NS = 100000000L;
+	private static final long MIN_TIMER_NS = 1000000L;
+	/* packets that are due within PACING_SLACK_NS go at once. the
+	 * selector can't wait for less than a millisecond and the carrier
+	 * loop may come back later than that, time it lost is made up for
+	 * up to this much. */
+	private static final long PACING_SLACK_NS = 5000000L;
+	private static final int MAX_PTO_BACKOFF = 6;
+	private static final int RECEIVE_BATCH = 256;
+	private static final int HELLO_TRIES = 10;
+	private static final int HELLO_INTERVAL_MS = 500;
+	// packets a Listener holds for a connection whose carrier lags, like a socket buffer
+	private static final int INBOX_PACKETS = 4096;
+
+	private final DatagramChannel channel; // our own, or the Listener's
+	private SelectionKey key; // null with the Listener's socket
+
+	/* a connection of a Listener. its thread receives the packets, and
+	 * passes them on in inbox */
+	private final Listener listener;
+	private final SocketAddress peer;
+	private final long nonce; // of the peer's HELLO
+	private final ConcurrentLinkedQueue<ByteBuffer> inbox;
+	private final AtomicInteger inboxSize;
+	// the selector has been woken for inbox, and the carrier loop is yet to look
+	private final AtomicBoolean wakeupPending;
+	private volatile Selector selector;
+
+	private int interest;
+	private volatile boolean closed = false;
+	private final ByteBuffer outPacket = ByteBuffer.allocate(MAX_PACKET);
+	private final ByteBuffer inPacket = ByteBuffer.allocate(MAX_PACKET);
+
+	/* sender. data is cut into segments of at most MSS bytes that keep
+	 * their offset and size once sent, so that a retransmission is the
+	 * same segment in a new packet. */
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>(); // not acked, by offset
+	private final ArrayDeque<Segment> unsent = new ArrayDeque<Segment>();
+	private final ArrayDeque<Segment> retransmit = new ArrayDeque<Segment>();
+	private long writeOffset = 0;
+	private long unackedBytes = 0; // in segments
+	private long peerMaxOffset = RECV_WINDOW;
+	private SentPacket [] sent = new SentPacket [1024]; // by packet number, a ring
+	private long firstPn = 0; // packets below are acked or lost
+	private long nextPn = 0;
+	private long lossScanPn = 0; // packets below are acked or lost, up to largestAckedPn
+	private long largestAckedPn = -1;
+	private long bytesInFlight = 0;
+	private long lossTime = 0; // when the next packet counts as lost by time, 0 if none
+	private long lastSendNanos;
+	private int ptoCount = 0;
+	private long nextSendNanos;
+	private boolean socketFull = false;
+	private long delivered = 0;
+	private long deliveredNanos;
+	private long deliveredSentNanos; // when the packet last delivered was sent
+	private long srttNanos = 0; // 0 if no sample yet
+	private long rttVarNanos;
+	private long latestRttNanos;
+	private long retransmits = 0;
+	private final BBRControl cc = new BBRControl(MAX_PACKET);
+
+	/* receiver */
+	private final ArrayDeque<ByteBuffer> readable = new ArrayDeque<ByteBuffer>();
+	private long readableBytes = 0;
+	private final TreeMap<Long, ByteBuffer> outOfOrder = new TreeMap<Long, ByteBuffer>();
+	private long readOffset = 0; // handed to the carrier
+	private long recvOffset = 0; // end of the data received in order
+	private long advertisedOffset = 0; // readOffset in the last ACK
+	private final ArrayList<long[]> ackRanges = new ArrayList<long[]>(); // {last, first}, highest first
+	private long largestRecvNanos;
+	private int ackPending = 0; // DATA packets not acked yet
+	private long ackDeadline = 0;
+	private boolean peerClosed = false;
+
+	private static final class Segment
+	{
+		final long offset;
+		final byte [] data = new byte [MSS];
+		int length;
+		boolean sent; // its data doesn't change any more
+		boolean acked;
+		boolean queued; // in retransmit
+
+		Segment (long offset)
+		{
+			this.offset = offset;
+		}
+	}
+
+	private static final class SentPacket
+	{
+		final long pn;
+		final Segment segment; // null for a probe without data
+		final int size;
+		final long sentNanos;
+		/* the delivery rate sample BBR needs, see BBRControl */
+		final long delivered;
+		final long deliveredNanos;
+		final long deliveredSentNanos;
+		final boolean appLimited;
+		boolean done; // acked or lost
+
+		SentPacket (long pn, Segment segment, int size, long sentNanos, long delivered,
+				long deliveredNanos, long deliveredSentNanos, boolean appLimited)
+		{
+			this.pn = pn;
+			this.segment = segment;
+			this.size = size;
+			this.sentNanos = sentNanos;
+			this.delivered = delivered;
+			this.deliveredNanos = deliveredNanos;
+			this.deliveredSentNanos = deliveredSentNanos;
+			this.appLimited = appLimited;
+		}
+	}
+
+	/* channel must be connected to the peer */
+	private UDPTransport (DatagramChannel channel)
+	{
+		this.channel = channel;
+		listener = null;
+		peer = null;
+		nonce = 0;
+		inbox = null;
+		inboxSize = null;
+		wakeupPending = null;
+	}
+
+	private UDPTransport (Listener listener, SocketAddress peer, long nonce)
+	{
+		channel = listener.channel;
+		this.listener = listener;
+		this.peer = peer;
+		this.nonce = nonce;
+		inbox = new ConcurrentLinkedQueue<ByteBuffer>();
+		inboxSize = new AtomicInteger(0);
+		wakeupPending = new AtomicBoolean(false);
+	}
+
+	/* connect to a Listener at addr */
+	public static UDPTransport connect (InetSocketAddress addr) throws IOException
+	{
+		DatagramChannel channel = DatagramChannel.open();
+		Selector selector = Selector.open();
+		try {
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+			long nonce = new Random().nextLong();
+			ByteBuffer hello = ByteBuffer.allocate(9);
+			ByteBuffer reply = ByteBuffer.allocate(MAX_PACKET);
+			for (int i = 0; i < HELLO_TRIES; i ++) {
+				hello.clear();
+				hello.put(TYPE_HELLO).putLong(nonce).flip();
+				channel.send(hello, addr);
+				long deadline = System.nanoTime() + HELLO_INTERVAL_MS * 1000000L;
+				long wait;
+				while ((wait = (deadline - System.nanoTime()) / 1000000L) > 0) {
+					selector.select(wait);
+					selector.selectedKeys().clear();
+					reply.clear();
+					SocketAddress from;
+					while ((from = channel.receive(reply)) != null) {
+						reply.flip();
+						if (reply.remaining() == 9 && reply.get() == TYPE_HELLO_ACK &&
+								reply.getLong() == nonce) {
+							channel.connect(from);
+							return new UDPTransport(channel);
+						}
+						reply.clear();
+					}
+				}
+			}
+			throw new IOException("no answer from " + addr);
+		} catch (IOException x) {
+			channel.close();
+			throw x;
+		} finally {
+			if (selector != null)
+				selector.close();
+		}
+	}
+
+	/* accepts UDPTransport connections on a UDP port. a thread of its own
+	 * receives the packets of all of them. */
+	public static class Listener
+	{
+		private final DatagramChannel channel;
+		private final ConcurrentHashMap<SocketAddress, UDPTransport> peers =
+			new ConcurrentHashMap<SocketAddress, UDPTransport>();
+		private final LinkedBlockingQueue<UDPTransport> accepted =
+			new LinkedBlockingQueue<UDPTransport>();
+
+		public Listener (InetSocketAddress addr) throws IOException
+		{
+			// blocking, the carriers' sends may wait for room but never fail for it
+			channel = DatagramChannel.open();
+			channel.bind(addr);
+			Thread thread = new Thread("UDPTransport.Listener") {
+				@Override
+				public void run ()
+				{
+					receiveLoop();
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public InetSocketAddress getLocalAddress () throws IOException
+		{
+			return (InetSocketAddress)channel.getLocalAddress();
+		}
+
+		/* block until a new peer says HELLO */
+		public UDPTransport accept () throws IOException
+		{
+			try {
+				while (true) {
+					UDPTransport transport = accepted.poll(HELLO_INTERVAL_MS, TimeUnit.MILLISECONDS);
+					if (transport != null)
+						return transport;
+					if (!channel.isOpen())
+						throw new ClosedChannelException();
+				}
+			} catch (InterruptedException x) {
+				throw new InterruptedIOException();
+			}
+		}
+
+		/* also ends the connections */
+		public void close () throws IOException
+		{
+			channel.close();
+		}
+
+		private void receiveLoop ()
+		{
+			ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET);
+			while (true) {
+				packet.clear();
+				SocketAddress from;
+				try {
+					from = channel.receive(packet);
+				} catch (IOException x) {
+					if (!channel.isOpen())
+						return;
+					LOG.fine("receive failed: " + x);
+					continue;
+				}
+				packet.flip();
+				UDPTransport transport = peers.get(from);
+				if (packet.remaining() == 9 && packet.get(0) == TYPE_HELLO) {
+					long nonce = packet.getLong(1);
+					if (transport == null || transport.nonce != nonce) {
+						// a new peer, or one that started over from the same address
+						transport = new UDPTransport(this, from, nonce);
+						peers.put(from, transport);
+						accepted.add(transport);
+					}
+					// a HELLO_ACK can be lost, then the HELLO comes again
+					try {
+						transport.sendHelloAck();
+					} catch (IOException x) {
+						LOG.fine("HELLO_ACK to " + from + " failed: " + x);
+					}
+				} else if (transport != null) {
+					transport.deliver(packet);
+				}
+			}
+		}
+	}
+
+	/* a packet from the peer, in the Listener's thread */
+	private void deliver (ByteBuffer packet)
+	{
+		if (inboxSize.get() >= INBOX_PACKETS)
+			return; // lost, like in a full socket buffer
+		inbox.add(copy(packet));
+		inboxSize.incrementAndGet();
+		Selector s = selector;
+		if (s != null && !wakeupPending.getAndSet(true))
+			s.wakeup();
+	}
+
+	private void sendHelloAck () throws IOException
+	{
+		ByteBuffer ack = ByteBuffer.allocate(9);
+		ack.put(TYPE_HELLO_ACK).putLong(nonce).flip();
+		write(ack);
+	}
+
+	/* to the peer, over our socket or the Listener's */
+	private int write (ByteBuffer packet) throws IOException
+	{
+		return listener != null ? channel.send(packet, peer) : channel.write(packet);
+	}
+
+	@Override
+	public void register (Selector selector) throws IOException
+	{
+		if (listener != null) {
+			this.selector = selector; // deliver() wakes it
+		} else {
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		}
+		nextSendNanos = deliveredNanos = deliveredSentNanos = System.nanoTime();
+	}
+
+	@Override
+	public void setInterest (int ops)
+	{
+		interest = ops;
+	}
+
+	@Override
+	public long nextDeadline ()
+	{
+		long now = System.nanoTime();
+		if (listener != null && !inbox.isEmpty())
+			return now;
+		// like a level triggered selector
+		if ((interest & SelectionKey.OP_READ) != 0 && (readableBytes > 0 || peerClosed))
+			return now;
+		if ((interest & SelectionKey.OP_WRITE) != 0 && unackedBytes < SEND_BUFFER)
+			return now;
+		long deadline = 0;
+		if (ackPending > 0)
+			deadline = earliest(deadline, ackDeadline);
+		Segment segment = nextSegment();
+		if (segment != null && !socketFull &&
+				bytesInFlight + DATA_HEADER + segment.length <= cc.cwnd())
+			deadline = earliest(deadline, nextSendNanos);
+		deadline = earliest(deadline, lossTime);
+		deadline = earliest(deadline, ptoDeadline());
+		return deadline;
+	}
+
+	@Override
+	public int poll () throws IOException
+	{
+		if (closed)
+			return SelectionKey.OP_READ; // read() says end of stream
+		long now = System.nanoTime();
+		socketFull = false;
+		receive(now);
+		if (lossTime != 0 && now - lossTime >= 0)
+			detectLosses(now);
+		long pto = ptoDeadline();
+		if (pto != 0 && now - pto >= 0) {
+			if (ptoCount < MAX_PTO_BACKOFF)
+				ptoCount ++;
+			sendProbe(now);
+		}
+		if (ackPending > 0 && now - ackDeadline >= 0)
+			sendAck(now);
+		sendPackets(now);
+		if (key != null)
+			key.interestOps(SelectionKey.OP_READ | (socketFull ? SelectionKey.OP_WRITE : 0));
+		int ops = 0;
+		if (readableBytes > 0 || peerClosed)
+			ops |= SelectionKey.OP_READ;
+		if (unackedBytes < SEND_BUFFER)
+			ops |= SelectionKey.OP_WRITE;
+		return ops & interest;
+	}
+
+	@Override
+	public int read (ByteBuffer dst) throws IOException
+	{
+		if (closed)
+			return -1;
+		int total = 0;
+		ByteBuffer chunk;
+		while (dst.hasRemaining() && (chunk = readable.peekFirst()) != null) {
+			int size = Math.min(dst.remaining(), chunk.remaining());
+			int limit = chunk.limit();
+			chunk.limit(chunk.position() + size);
+			dst.put(chunk);
+			chunk.limit(limit);
+			if (!chunk.hasRemaining())
+				readable.pollFirst();
+			total += size;
+		}
+		readableBytes -= total;
+		readOffset += total;
+		if (total == 0 && peerClosed)
+			return -1;
+		// tell the sender about the room before it runs out
+		if (readOffset - advertisedOffset >= RECV_WINDOW / 4)
+			sendAck(System.nanoTime());
+		return total;
+	}
+
+	@Override
+	public long write (ByteBuffer [] srcs, int offset, int length) throws IOException
+	{
+		if (closed)
+			throw new IOException("transport closed");
+		long total = 0;
+		for (int i = offset; i < offset + length; i ++) {
+			ByteBuffer src = srcs[i];
+			while (src.hasRemaining() && unackedBytes < SEND_BUFFER) {
+				Segment tail = unsent.peekLast();
+				if (tail == null || tail.length == MSS) {
+					tail = new Segment(writeOffset);
+					unsent.addLast(tail);
+					segments.addLast(tail);
+				}
+				int size = (int)Math.min(Math.min(src.remaining(), MSS - tail.length),
+						SEND_BUFFER - unackedBytes);
+				src.get(tail.data, tail.length, size);
+				tail.length += size;
+				writeOffset += size;
+				unackedBytes += size;
+				total += size;
+			}
+		}
+		sendPackets(System.nanoTime());
+		return total;
+	}
+
+	/* can be called in any thread. data not acked yet is lost, the carrier
+	 * has nothing to say once it closes. */
+	@Override
+	public void close () throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		ByteBuffer bye = ByteBuffer.allocate(1);
+		try {
+			// twice, it may be lost
+			for (int i = 0; i < 2; i ++) {
+				bye.clear();
+				bye.put(TYPE_CLOSE).flip();
+				write(bye);
+			}
+		} catch (IOException x) {
+		}
+		if (listener != null)
+			listener.peers.remove(peer, this);
+		else
+			channel.close();
+	}
+
+	/* the smoothed RTT and the retransmissions, for logging */
+	@Override
+	public String toString ()
+	{
+		return "udp rtt=" + srttNanos / 1000000.0 + "ms minrtt=" + cc.getMinRtt() / 1000000.0 +
+			"ms bw=" + cc.getBandwidth() + "B/s cwnd=" + cc.cwnd() + " retransmits=" + retransmits;
+	}
+
+	private void receive (long now) throws IOException
+	{
+		if (listener != null)
+			wakeupPending.set(false); // what deliver() adds from now on wakes us again
+		for (int i = 0; i < RECEIVE_BATCH; i ++) {
+			inPacket.clear();
+			if (!readPacket())
+				break;
+			inPacket.flip();
+			int size = inPacket.remaining();
+			try {
+				switch (inPacket.get()) {
+				case TYPE_DATA: onData(now); break;
+				case TYPE_ACK: onAck(now); break;
+				case TYPE_CLOSE: peerClosed = true; break;
+				default: break; // a repeated HELLO_ACK
+				}
+			} catch (BufferUnderflowException x) {
+				LOG.fine("short packet of " + size + " bytes");
+			}
+		}
+	}
+
+	/* the next packet from the peer into inPacket. return false if none */
+	private boolean readPacket () throws IOException
+	{
+		if (listener != null) {
+			ByteBuffer packet = inbox.poll();
+			if (packet == null)
+				return false;
+			inboxSize.decrementAndGet();
+			inPacket.put(packet);
+			return true;
+		}
+		try {
+			return channel.read(inPacket) > 0;
+		} catch (PortUnreachableException x) {
+			// nobody there yet or any more; the carrier's PINGs tell
+			return false;
+		}
+	}
+
+	/* the next segment to send: lost ones first, then new data within the
+	 * peer's window. null if none */
+	private Segment nextSegment ()
+	{
+		Segment segment;
+		while ((segment = retransmit.peekFirst()) != null && segment.acked) {
+			retransmit.pollFirst();
+			segment.queued = false;
+		}
+		if (segment != null)
+			return segment;
+		segment = unsent.peekFirst();
+		if (segment != null && segment.offset + segment.length <= peerMaxOffset)
+			return segment;
+		return null;
+	}
+
+	private void sendPackets (long now) throws IOException
+	{
+		Segment segment;
+		while (!peerClosed && !socketFull && (segment = nextSegment()) != null) {
+			if (bytesInFlight + DATA_HEADER + segment.length > cc.cwnd())
+				return;
+			if (nextSendNanos - now > 0)
+				return;
+			boolean retransmission = segment.sent;
+			if (!sendData(segment, now))
+				return;
+			if (retransmission) {
+				retransmit.pollFirst();
+				segment.queued = false;
+				retransmits ++;
+			} else {
+				unsent.pollFirst();
+				segment.sent = true;
+			}
+			// a burst of PACING_SLACK_NS may go at once, not more
+			if (nextSendNanos - (now - PACING_SLACK_NS) < 0)
+				nextSendNanos = now - PACING_SLACK_NS;
+			nextSendNanos += (DATA_HEADER + segment.length) * 1000000000L / cc.pacingRate();
+		}
+	}
+
+	/* send segment, or an empty DATA if null, in a new packet. return false
+	 * if the socket buffer is full. */
+	private boolean sendData (Segment segment, long now) throws IOException
+	{
+		int length = segment == null ? 0 : segment.length;
+		outPacket.clear();
+		outPacket.put(TYPE_DATA);
+		outPacket.putLong(nextPn);
+		outPacket.putLong(segment == null ? writeOffset : segment.offset);
+		if (segment != null)
+			outPacket.put(segment.data, 0, length);
+		outPacket.flip();
+		if (!send(outPacket))
+			return false;
+		if (bytesInFlight == 0) // the rate sample starts now, not at the last ack
+			deliveredNanos = deliveredSentNanos = now;
+		boolean appLimited = unsent.size() + retransmit.size() <= 1;
+		SentPacket packet = new SentPacket(nextPn, segment, DATA_HEADER + length, now,
+				delivered, deliveredNanos, deliveredSentNanos, appLimited);
+		if (nextPn - firstPn == sent.length) {
+			SentPacket [] larger = new SentPacket [sent.length * 2];
+			for (long pn = firstPn; pn < nextPn; pn ++)
+				larger[(int)(pn & (larger.length - 1))] = sent[(int)(pn & (sent.length - 1))];
+			sent = larger;
+		}
+		sent[(int)(nextPn & (sent.length - 1))] = packet;
+		nextPn ++;
+		bytesInFlight += packet.size;
+		lastSendNanos = now;
+		return true;
+	}
+
+	/* when the probe timeout fires, 0 if nothing is waiting for an ack */
+	private long ptoDeadline ()
+	{
+		boolean blocked = !unsent.isEmpty() && nextSegment() == null; // by the peer's window
+		if (bytesInFlight == 0 && !blocked)
+			return 0;
+		long pto = srttNanos == 0 ? 2 * INITIAL_RTT_NS :
+			srttNanos + Math.max(4 * rttVarNanos, MIN_TIMER_NS);
+		return lastSendNanos + ((pto + MAX_ACK_DELAY_NS) << ptoCount);
+	}
+
+	/* nothing acked for a while: send the oldest data that isn't acked,
+	 * regardless of the window, to get an ack */
+	private void sendProbe (long now) throws IOException
+	{
+		Segment oldest = null;
+		for (Segment segment : segments) {
+			if (!segment.sent)
+				break;
+			if (!segment.acked) {
+				oldest = segment;
+				break;
+			}
+		}
+		LOG.finer("probe timeout " + ptoCount + (oldest == null ? "" : " offset=" + oldest.offset));
+		if (sendData(oldest, now) && oldest != null)
+			retransmits ++;
+	}
+
+	private void onData (long now) throws IOException
+	{
+		long pn = inPacket.getLong();
+		long offset = inPacket.getLong();
+		boolean largest = ackRanges.isEmpty() || pn > ackRanges.get(0)[0];
+		boolean inOrder = ackRanges.isEmpty() || pn == ackRanges.get(0)[0] + 1;
+		if (!recordPacket(pn)) {
+			// our ack is lost, say it again
+			ackPending ++;
+			ackDeadline = now;
+			return;
+		}
+		if (largest)
+			largestRecvNanos = now;
+		if (inPacket.hasRemaining())
+			receiveData(offset);
+		ackPending ++;
+		if (!inOrder || ackPending >= 2)
+			ackDeadline = now; // a gap is news for the sender's loss detection
+		else if (ackPending == 1)
+			ackDeadline = now + MAX_ACK_DELAY_NS;
+	}
+
+	private void receiveData (long offset)
+	{
+		int length = inPacket.remaining();
+		long end = offset + length;
+		if (end <= recvOffset)
+			return; // had it
+		if (end > readOffset + RECV_WINDOW) {
+			LOG.fine("DATA beyond the window, offset=" + offset);
+			return;
+		}
+		if (offset > recvOffset) {
+			if (!outOfOrder.containsKey(offset))
+				outOfOrder.put(offset, copy(inPacket));
+			return;
+		}
+		inPacket.position(inPacket.position() + (int)(recvOffset - offset));
+		appendReadable(copy(inPacket));
+		Map.Entry<Long, ByteBuffer> entry;
+		while ((entry = outOfOrder.firstEntry()) != null && entry.getKey() <= recvOffset) {
+			outOfOrder.pollFirstEntry();
+			ByteBuffer data = entry.getValue();
+			if (entry.getKey() + data.remaining() <= recvOffset)
+				continue;
+			data.position(data.position() + (int)(recvOffset - entry.getKey()));
+			appendReadable(data);
+		}
+	}
+
+	private static ByteBuffer copy (ByteBuffer src)
+	{
+		ByteBuffer data = ByteBuffer.allocate(src.remaining());
+		data.put(src);
+		data.flip();
+		return data;
+	}
+
+	private void appendReadable (ByteBuffer data)
+	{
+		readable.addLast(data);
+		readableBytes += data.remaining();
+		recvOffset += data.remaining();
+	}
+
+	/* add pn to ackRanges. return false if it is there already. */
+	private boolean recordPacket (long pn)
+	{
+		for (int i = 0; i < ackRanges.size(); i ++) {
+			long [] range = ackRanges.get(i);
+			if (pn > range[0] + 1) {
+				ackRanges.add(i, new long [] {pn, pn});
+				break;
+			}
+			if (pn == range[0] + 1) {
+				range[0] = pn;
+				if (i > 0 && ackRanges.get(i - 1)[1] == pn + 1) {
+					ackRanges.get(i - 1)[1] = range[1];
+					ackRanges.remove(i);
+				}
+				return true;
+			}
+			if (pn >= range[1])
+				return false;
+			if (pn == range[1] - 1) {
+				range[1] = pn;
+				if (i + 1 < ackRanges.size() && ackRanges.get(i + 1)[0] == pn - 1) {
+					range[1] = ackRanges.get(i + 1)[1];
+					ackRanges.remove(i + 1);
+				}
+				return true;
+			}
+			if (i == ackRanges.size() - 1) {
+				ackRanges.add(new long [] {pn, pn});
+				break;
+			}
+		}
+		if (ackRanges.isEmpty())
+			ackRanges.add(new long [] {pn, pn});
+		// the oldest ranges were acked long ago
+		while (ackRanges.size() > MAX_ACK_RANGES)
+			ackRanges.remove(ackRanges.size() - 1);
+		return true;
+	}
+
+	private void sendAck (long now) throws IOException
+	{
+		int count = Math.min(ackRanges.size(), (MAX_PACKET - ACK_HEADER) / 16);
+		outPacket.clear();
+		outPacket.put(TYPE_ACK);
+		outPacket.putLong(count == 0 ? -1 : ackRanges.get(0)[0]);
+		outPacket.putInt((int)Math.min((now - largestRecvNanos) / 1000, Integer.MAX_VALUE));
+		outPacket.putLong(readOffset + RECV_WINDOW);
+		outPacket.put((byte)count);
+		for (int i = 0; i < count; i ++) {
+			outPacket.putLong(ackRanges.get(i)[0]);
+			outPacket.putLong(ackRanges.get(i)[1]);
+		}
+		outPacket.flip();
+		if (send(outPacket)) {
+			ackPending = 0;
+			ackDeadline = 0;
+			advertisedOffset = readOffset;
+		}
+	}
+
+	private void onAck (long now)
+	{
+		long largest = inPacket.getLong();
+		long ackDelay = (inPacket.getInt() & 0xffffffffL) * 1000;
+		long maxOffset = inPacket.getLong();
+		int count = inPacket.get() & 0xff;
+		if (inPacket.remaining() < count * 16 || largest >= nextPn)
+			return;
+		if (maxOffset > peerMaxOffset)
+			peerMaxOffset = maxOffset;
+		boolean newlyAcked = false;
+		for (int i = 0; i < count; i ++) {
+			long last = Math.min(inPacket.getLong(), nextPn - 1);
+			long first = inPacket.getLong();
+			// below lossScanPn all are acked or lost already
+			for (long pn = Math.max(first, lossScanPn); pn <= last; pn ++) {
+				SentPacket packet = sentPacket(pn);
+				if (packet == null || packet.done)
+					continue;
+				onPacketAcked(packet, now);
+				newlyAcked = true;
+				if (pn == largest) {
+					long sample = now - packet.sentNanos;
+					cc.onRtt(sample, now);
+					updateRtt(sample, ackDelay);
+				}
+			}
+		}
+		if (!newlyAcked)
+			return;
+		if (largest > largestAckedPn)
+			largestAckedPn = largest;
+		ptoCount = 0;
+		detectLosses(now);
+		Segment segment;
+		while ((segment = segments.peekFirst()) != null && segment.acked) {
+			segments.pollFirst();
+			unackedBytes -= segment.length;
+		}
+		while (firstPn < nextPn && sentPacket(firstPn) == null) {
+			sent[(int)(firstPn & (sent.length - 1))] = null;
+			firstPn ++;
+		}
+		if (lossScanPn < firstPn)
+			lossScanPn = firstPn;
+		cc.update(now, bytesInFlight);
+	}
+
+	/* null if acked or lost */
+	private SentPacket sentPacket (long pn)
+	{
+		if (pn < firstPn || pn >= nextPn)
+			return null;
+		SentPacket packet = sent[(int)(pn & (sent.length - 1))];
+		return packet == null || packet.done ? null : packet;
+	}
+
+	private void onPacketAcked (SentPacket packet, long now)
+	{
+		packet.done = true;
+		bytesInFlight -= packet.size;
+		delivered += packet.size;
+		deliveredNanos = now;
+		deliveredSentNanos = packet.sentNanos;
+		if (packet.segment != null)
+			packet.segment.acked = true;
+		// the slower of sending and acking bounds the rate, see BBRControl
+		long interval = Math.max(now - packet.deliveredNanos,
+				packet.sentNanos - packet.deliveredSentNanos);
+		long rate = interval <= 0 ? 0 :
+			(long)((double)(delivered - packet.delivered) * 1000000000L / interval);
+		cc.onPacketAcked(packet.delivered, delivered, rate, packet.appLimited);
+	}
+
+	/* RFC 9002 section 5.3 */
+	private void updateRtt (long sample, long ackDelay)
+	{
+		latestRttNanos = sample;
+		long minRtt = cc.getMinRtt();
+		if (sample - ackDelay >= minRtt)
+			sample -= ackDelay;
+		if (srttNanos == 0) {
+			srttNanos = sample;
+			rttVarNanos = sample / 2;
+		} else {
+			rttVarNanos = (3 * rttVarNanos + Math.abs(srttNanos - sample)) / 4;
+			srttNanos = (7 * srttNanos + sample) / 8;
+		}
+	}
+
+	/* a packet PACKET_THRESHOLD below the largest acked, or sent a while
+	 * before it, is lost. its segment goes again. */
+	private void detectLosses (long now)
+	{
+		lossTime = 0;
+		long lossDelay = Math.max(Math.max(srttNanos, latestRttNanos) * 9 / 8, MIN_TIMER_NS);
+		if (srttNanos == 0)
+			lossDelay = INITIAL_RTT_NS;
+		for (; lossScanPn <= largestAckedPn; lossScanPn ++) {
+			SentPacket packet = sentPacket(lossScanPn);
+			if (packet == null)
+				continue;
+			if (largestAckedPn - packet.pn < PACKET_THRESHOLD && now - packet.sentNanos < lossDelay) {
+				lossTime = packet.sentNanos + lossDelay;
+				break;
+			}
+			packet.done = true;
+			bytesInFlight -= packet.size;
+			Segment segment = packet.segment;
+			if (segment != null && !segment.acked && !segment.queued) {
+				segment.queued = true;
+				retransmit.addLast(segment);
+			}
+		}
+	}
+
+	/* return false if the socket buffer is full */
+	private boolean send (ByteBuffer packet) throws IOException
+	{
+		try {
+			if (write(packet) == 0) {
+				socketFull = true;
+				return false;
+			}
+		} catch (PortUnreachableException x) {
+			// as good as lost on the way
+		}
+		return true;
+	}
+
+	private static long earliest (long a, long b)
+	{
+		if (a == 0)
+			return b;
+		if (b == 0)
+			return a;
+		return b - a < 0 ? b : a;
+	}
+}
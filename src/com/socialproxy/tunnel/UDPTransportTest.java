@@ -0,0 +1,238 @@
+package com.socialproxy.tunnel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+public class UDPTransportTest
+{
+	private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+	/* forwards datagrams between a client and a Listener, dropping some and
+	 * delaying the others by delay plus up to jitter, which reorders them.
+	 * like a NAT in front of the client, it only lets in what comes from
+	 * the Listener's address. */
+	static class LossyRelay extends Thread
+	{
+		private final DatagramChannel down; // to the client
+		private final DatagramChannel up; // to the server
+		private final SocketAddress listener;
+		private final double loss;
+		private final long delayNanos;
+		private final long jitterNanos;
+		private final Random rand = new Random(1);
+		private final PriorityQueue<Delayed> queue = new PriorityQueue<Delayed>();
+		private SocketAddress client;
+		private volatile boolean stop = false;
+
+		static class Delayed implements Comparable<Delayed>
+		{
+			final long due;
+			final ByteBuffer packet;
+			final boolean toServer;
+
+			Delayed (long due, ByteBuffer packet, boolean toServer)
+			{
+				this.due = due;
+				this.packet = packet;
+				this.toServer = toServer;
+			}
+
+			@Override
+			public int compareTo (Delayed other)
+			{
+				return Long.compare(due, other.due);
+			}
+		}
+
+		LossyRelay (SocketAddress listener, double loss, int delayMs, int jitterMs) throws IOException
+		{
+			this.listener = listener;
+			this.loss = loss;
+			delayNanos = delayMs * 1000000L;
+			jitterNanos = jitterMs * 1000000L;
+			down = DatagramChannel.open().bind(new InetSocketAddress(LOOPBACK, 0));
+			up = DatagramChannel.open().bind(new InetSocketAddress(LOOPBACK, 0));
+			down.configureBlocking(false);
+			up.configureBlocking(false);
+		}
+
+		InetSocketAddress getAddress () throws IOException
+		{
+			return (InetSocketAddress)down.getLocalAddress();
+		}
+
+		@Override
+		public void run ()
+		{
+			try {
+				Selector selector = Selector.open();
+				down.register(selector, SelectionKey.OP_READ);
+				up.register(selector, SelectionKey.OP_READ);
+				while (!stop) {
+					Delayed next = queue.peek();
+					long wait = next == null ? 100 : (next.due - System.nanoTime()) / 1000000;
+					if (wait > 0)
+						selector.select(wait);
+					else
+						selector.selectNow();
+					selector.selectedKeys().clear();
+					relay(down, true);
+					relay(up, false);
+					long now = System.nanoTime();
+					while ((next = queue.peek()) != null && now - next.due >= 0) {
+						queue.poll();
+						if (next.toServer)
+							up.send(next.packet, listener);
+						else
+							down.send(next.packet, client);
+					}
+				}
+				selector.close();
+				down.close();
+				up.close();
+			} catch (IOException x) {
+				throw new RuntimeException(x);
+			}
+		}
+
+		private void relay (DatagramChannel from, boolean toServer) throws IOException
+		{
+			while (true) {
+				ByteBuffer packet = ByteBuffer.allocate(2048);
+				SocketAddress addr = from.receive(packet);
+				if (addr == null)
+					return;
+				if (toServer)
+					client = addr;
+				else if (!addr.equals(listener))
+					continue;
+				if (rand.nextDouble() < loss)
+					continue;
+				packet.flip();
+				long jitter = jitterNanos == 0 ? 0 : (long)(rand.nextDouble() * jitterNanos);
+				queue.add(new Delayed(System.nanoTime() + delayNanos + jitter, packet, toServer));
+			}
+		}
+
+		void shutdown ()
+		{
+			stop = true;
+		}
+	}
+
+	/* the byte at offset of the stream with seed */
+	private static byte streamByte (long offset, int seed)
+	{
+		long x = (offset + seed) * 0x9e3779b97f4a7c15L;
+		return (byte)(x >>> 56);
+	}
+
+	/* drive transport the way the carrier loop does: send size bytes of
+	 * one stream and check that size bytes of the other come back. keep
+	 * going until both sides have all, the peer may need our acks. */
+	static void pump (Transport transport, long size, int sendSeed, int recvSeed,
+			CountDownLatch done, long deadline) throws IOException
+	{
+		Selector selector = Selector.open();
+		transport.register(selector);
+		ByteBuffer out = ByteBuffer.allocate(65536);
+		ByteBuffer in = ByteBuffer.allocate(65536);
+		out.limit(0);
+		long sent = 0;
+		long received = 0;
+		while (done.getCount() > 0) {
+			if (System.nanoTime() - deadline > 0)
+				throw new RuntimeException("timeout, received " + received + " of " + size);
+			if (!out.hasRemaining() && sent < size) {
+				out.clear();
+				int chunk = (int)Math.min(out.capacity(), size - sent);
+				for (int i = 0; i < chunk; i ++)
+					out.put(streamByte(sent + i, sendSeed));
+				out.flip();
+			}
+			transport.setInterest(SelectionKey.OP_READ |
+					(out.hasRemaining() ? SelectionKey.OP_WRITE : 0));
+			long wakeup = transport.nextDeadline();
+			long wait = wakeup == 0 ? 100 : (wakeup - System.nanoTime() + 999999) / 1000000;
+			if (wait > 0)
+				selector.select(Math.min(wait, 100));
+			else
+				selector.selectNow();
+			int ops = transport.poll();
+			selector.selectedKeys().clear();
+			if ((ops & SelectionKey.OP_READ) != 0) {
+				in.clear();
+				int n = transport.read(in);
+				if (n < 0) {
+					// the peer closes once both sides have all
+					if (received < size)
+						throw new RuntimeException("end of stream after " + received);
+					break;
+				}
+				for (int i = 0; i < n; i ++)
+					if (in.get(i) != streamByte(received + i, recvSeed))
+						throw new RuntimeException("wrong byte at " + (received + i));
+				received += n;
+				if (n > 0 && received == size)
+					done.countDown();
+			}
+			if ((ops & SelectionKey.OP_WRITE) != 0 && out.hasRemaining()) {
+				sent += transport.write(new ByteBuffer [] {out}, 0, 1);
+			}
+		}
+		transport.close();
+		selector.close();
+	}
+
+	public static void testTransfer (final long size, double loss, int delayMs, int jitterMs)
+			throws Exception
+	{
+		final UDPTransport.Listener listener =
+			new UDPTransport.Listener(new InetSocketAddress(LOOPBACK, 0));
+		LossyRelay relay = new LossyRelay(listener.getLocalAddress(), loss, delayMs, jitterMs);
+		relay.start();
+		final CountDownLatch done = new CountDownLatch(2);
+		final long deadline = System.nanoTime() + 60000000000L;
+		final Exception [] error = new Exception[1];
+		Thread server = new Thread() {
+			@Override
+			public void run ()
+			{
+				try {
+					pump(listener.accept(), size, 2, 1, done, deadline);
+				} catch (Exception x) {
+					error[0] = x;
+					done.countDown();
+					done.countDown();
+				}
+			}
+		};
+		server.start();
+		try {
+			pump(UDPTransport.connect(relay.getAddress()), size, 1, 2, done, deadline);
+		} finally {
+			server.join();
+			relay.shutdown();
+			relay.join();
+			listener.close();
+		}
+		if (error[0] != null)
+			throw new RuntimeException("loss=" + loss + " delay=" + delayMs, error[0]);
+	}
+
+	public static void main (String [] args) throws Exception
+	{
+		testTransfer(20 << 20, 0, 0, 0);
+		testTransfer(4 << 20, 0.03, 20, 5);
+		testTransfer(1 << 20, 0.15, 50, 20);
+	}
+}
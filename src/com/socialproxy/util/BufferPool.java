@@ -0,0 +1,52 @@
+package com.socialproxy.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* A pool of equally sized ByteBuffers. Direct buffers are expensive to
+ * allocate and are only freed by the GC, so long lived users should take
+ * them from a pool and give them back.
+ * BufferPool is thread safe. */
+public final class BufferPool
+{
+	private final int bufferSize;
+	private final int maxPooled;
+	private final boolean direct;
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger freeCount = new AtomicInteger(0);
+
+	/* keep at most maxPooled free buffers around */
+	public BufferPool (int bufferSize, int maxPooled, boolean direct)
+	{
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+	}
+
+	public int getBufferSize () {return bufferSize;}
+
+	/* return a cleared buffer of bufferSize bytes */
+	public ByteBuffer acquire ()
+	{
+		ByteBuffer buffer = free.poll();
+		if (buffer == null)
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		freeCount.decrementAndGet();
+		return buffer;
+	}
+
+	/* the caller must not touch buffer after this */
+	public void release (ByteBuffer buffer)
+	{
+		if (buffer.capacity() != bufferSize || buffer.isDirect() != direct)
+			throw new IllegalArgumentException("buffer is not from this pool");
+		if (freeCount.incrementAndGet() > maxPooled) {
+			freeCount.decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		free.add(buffer);
+	}
+}
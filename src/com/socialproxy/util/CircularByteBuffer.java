@@ -5,32 +5,61 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.io.IOException;
 
-/* CircularByteBuffer is not thread safe. */
+/* CircularByteBuffer is not thread safe.
+ * The storage can be a direct ByteBuffer, so that get(WritableByteChannel)
+ * writes straight from it without the JDK copying into a temporary direct
+ * buffer first. */
 public final class CircularByteBuffer
 {
-	private final byte [] buffer;
+	private ByteBuffer buffer; // only absolute get/put are used
+	private int capacity;
 	private int ptr;
 	private int used;
 	private ByteBuffer bytebuf = null;
 
 	public CircularByteBuffer (int capacity)
 	{
-		buffer = new byte [capacity];
+		this(ByteBuffer.allocate(capacity));
+	}
+
+	/* use all of storage, from 0 to its capacity */
+	public CircularByteBuffer (ByteBuffer storage)
+	{
+		buffer = storage;
+		capacity = storage.capacity();
 		ptr = used = 0;
 	}
 
-	public int getSize () {return buffer.length;}
+	/* move the content to storage, which becomes the new storage.
+	 * storage must be able to hold getUsed() bytes.
+	 * return the old storage. */
+	public ByteBuffer moveTo (ByteBuffer storage)
+	{
+		if (storage.capacity() < used)
+			throw new IllegalArgumentException("new storage too small");
+		ByteBuffer old = buffer;
+		int tocopy = capacity - ptr < used ? capacity - ptr : used;
+		storage.put(0, old, ptr, tocopy);
+		storage.put(tocopy, old, 0, used - tocopy);
+		buffer = storage;
+		capacity = storage.capacity();
+		ptr = 0;
+		bytebuf = null;
+		return old;
+	}
+
+	public int getSize () {return capacity;}
 	public int getUsed () {return used;}
-	public int getFree () {return buffer.length - used;}
+	public int getFree () {return capacity - used;}
 	public boolean isEmpty () {return used == 0;}
-	public boolean isFull () {return buffer.length == used;}
+	public boolean isFull () {return capacity == used;}
 
 	public int get ()
 	{
 		if (used == 0)
 			throw new ArrayIndexOutOfBoundsException();
-		int retval = buffer[ptr] & 0xff;
-		ptr = (ptr + 1) % buffer.length;
+		int retval = buffer.get(ptr) & 0xff;
+		ptr = (ptr + 1) % capacity;
 		used --;
 		return retval;
 	}
@@ -42,9 +71,9 @@ public final class CircularByteBuffer
 
 		if (size > used)
 			size = used;
-		int tocopy = buffer.length - ptr < size ? buffer.length - ptr : size;
-		System.arraycopy(buffer, ptr, out, offset, tocopy);
-		ptr = (ptr + tocopy) % buffer.length;
+		int tocopy = capacity - ptr < size ? capacity - ptr : size;
+		buffer.get(ptr, out, offset, tocopy);
+		ptr = (ptr + tocopy) % capacity;
 		used -= tocopy;
 		offset += tocopy;
 		size -= tocopy;
@@ -54,16 +83,32 @@ public final class CircularByteBuffer
 
 		assert used >= size;
 		assert ptr == 0;
-		System.arraycopy(buffer, 0, out, offset, size);
+		buffer.get(0, out, offset, size);
 		ptr += size;
 		used -= size;
 		return tocopy + size;
 	}
 
+	/* copy as much as fits to out, from its position on. with direct
+	 * storage and a direct out it is a plain memory copy. */
+	public int get (ByteBuffer out)
+	{
+		int size = out.remaining() < used ? out.remaining() : used;
+		if (size == 0)
+			return 0;
+		int tocopy = capacity - ptr < size ? capacity - ptr : size;
+		out.put(out.position(), buffer, ptr, tocopy);
+		out.put(out.position() + tocopy, buffer, 0, size - tocopy);
+		out.position(out.position() + size);
+		ptr = (ptr + size) % capacity;
+		used -= size;
+		return size;
+	}
+
 	public int get (WritableByteChannel channel, int limit) throws IOException
 	{
 		if (bytebuf == null)
-			bytebuf = ByteBuffer.wrap(buffer);
+			bytebuf = buffer.duplicate();
 
 		assert limit >= -1;
 		if (limit == -1)
@@ -72,12 +117,12 @@ public final class CircularByteBuffer
 			return 0;
 		if (limit > used)
 			limit = used;
-		int tosend = buffer.length - ptr < limit ? buffer.length - ptr : limit;
+		int tosend = capacity - ptr < limit ? capacity - ptr : limit;
 		bytebuf.limit(ptr + tosend).position(ptr);
 		int sent = channel.write(bytebuf);
 		assert sent >= 0;
 		assert sent <= tosend;
-		ptr = (ptr + sent) % buffer.length;
+		ptr = (ptr + sent) % capacity;
 		used -= sent;
 		limit -= sent;
 		if (sent < tosend || limit == 0)
@@ -94,24 +139,24 @@ public final class CircularByteBuffer
 
 	public void put (byte b)
 	{
-		if (buffer.length == used)
+		if (capacity == used)
 			throw new ArrayIndexOutOfBoundsException();
-		buffer[(ptr + used) % buffer.length] = b;
+		buffer.put((ptr + used) % capacity, b);
 		used ++;
 	}
 
 	public int put (byte[] in, int offset, int size)
 	{
-		if (size <= 0 || buffer.length == used)
+		if (size <= 0 || capacity == used)
 			return 0;
 
 		//System.out.printf("offset=%d, size=%d, cap=%d, ptr=%d, used=%d\n",
-		//		offset, size, buffer.length, ptr, used);
-		if (size > buffer.length - used)
-			size = buffer.length - used;
-		int tocopy = buffer.length - (ptr + used) % buffer.length;
+		//		offset, size, capacity, ptr, used);
+		if (size > capacity - used)
+			size = capacity - used;
+		int tocopy = capacity - (ptr + used) % capacity;
 		tocopy = tocopy < size ? tocopy : size;
-		System.arraycopy(in, offset, buffer, (ptr + used) % buffer.length, tocopy);
+		buffer.put((ptr + used) % capacity, in, offset, tocopy);
 		used += tocopy;
 		offset += tocopy;
 		size -= tocopy;
@@ -119,9 +164,9 @@ public final class CircularByteBuffer
 		if (size == 0)
 			return tocopy;
 
-		assert buffer.length - used >= size;
-		assert ptr + used == buffer.length;
-		System.arraycopy(in, offset, buffer, 0, size);
+		assert capacity - used >= size;
+		assert ptr + used == capacity;
+		buffer.put(0, in, offset, size);
 		used += size;
 		return tocopy + size;
 	}
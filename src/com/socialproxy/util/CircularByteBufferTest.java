@@ -1,14 +1,17 @@
 package com.socialproxy.util;
 
+import java.nio.ByteBuffer;
 import java.util.Random;
 import java.util.Arrays;
 
 public class CircularByteBufferTest
 {
-	public static void test (int datalen, int bufcap, int seed)
+	public static void test (int datalen, int bufcap, int seed, boolean direct)
 	{
 		Random rand = new Random(bufcap + datalen + seed);
-		CircularByteBuffer cbuf = new CircularByteBuffer(bufcap);
+		CircularByteBuffer cbuf = direct ?
+			new CircularByteBuffer(ByteBuffer.allocateDirect(bufcap)) :
+			new CircularByteBuffer(bufcap);
 		byte [] indata = new byte [datalen];
 		byte [] outdata = new byte [datalen];
 		int inptr = 0;
@@ -34,7 +37,8 @@ public class CircularByteBufferTest
 					int size = rand.nextInt(bufcap + bufcap/10);
 					size = size < datalen - outptr ? size : datalen - outptr;
 					int expcpsize = size < cbuf.getUsed() ? size : cbuf.getUsed();
-					int cpsize = cbuf.get(outdata, outptr, size);
+					int cpsize = rand.nextBoolean() ? cbuf.get(outdata, outptr, size) :
+						cbuf.get(ByteBuffer.wrap(outdata, outptr, size));
 					if (expcpsize != cpsize) throw new RuntimeException("get() expcpsize=" + expcpsize + ", cpsize=" + cpsize);
 					outptr += cpsize;
 				}
@@ -45,11 +49,35 @@ public class CircularByteBufferTest
 		if (!Arrays.equals(indata, outdata)) throw new RuntimeException("indata != outdata");
 	}
 
+	/* moveTo() must keep the content, also when it wraps around */
+	public static void testMove (int bufcap, int seed)
+	{
+		Random rand = new Random(bufcap + seed);
+		CircularByteBuffer cbuf = new CircularByteBuffer(ByteBuffer.allocateDirect(bufcap));
+		byte [] indata = new byte [bufcap * 8];
+		rand.nextBytes(indata);
+		byte [] outdata = new byte [indata.length];
+		int inptr = 0;
+		int outptr = 0;
+		while (outptr < indata.length) {
+			inptr += cbuf.put(indata, inptr, Math.min(rand.nextInt(bufcap) + 1, indata.length - inptr));
+			outptr += cbuf.get(outdata, outptr, rand.nextInt(bufcap));
+			int newcap = cbuf.getUsed() + rand.nextInt(bufcap) + 1;
+			cbuf.moveTo(ByteBuffer.allocateDirect(newcap));
+			bufcap = newcap;
+		}
+		if (!Arrays.equals(indata, outdata)) throw new RuntimeException("moveTo() corrupted data");
+	}
+
 	public static void main (String [] args)
 	{
-		test(10000, 5, 1);
-		test(2015, 11, 1);
-		test(100000, 99, 2);
-		test(100000, 1600, 3);
+		for (boolean direct : new boolean [] {false, true}) {
+			test(10000, 5, 1, direct);
+			test(2015, 11, 1, direct);
+			test(100000, 99, 2, direct);
+			test(100000, 1600, 3, direct);
+		}
+		testMove(7, 1);
+		testMove(1600, 2);
 	}
 }
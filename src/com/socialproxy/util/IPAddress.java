@@ -0,0 +1,153 @@
+package com.socialproxy.util;
+
+import java.nio.ByteBuffer;
+
+/* Parsers for the textual forms of IP addresses and hostnames that don't
+ * allocate, for building CON1s.
+ * With a null dst they only check the text. Otherwise they put the address
+ * in network byte order at dst's position and advance it; if they return
+ * false, dst may have been written anyway, so check first. */
+public final class IPAddress
+{
+	public static final int MAX_HOSTNAME_LENGTH = 255;
+
+	private IPAddress () {}
+
+	/* dotted decimal, four numbers in [0, 255] */
+	public static boolean parseIPv4 (CharSequence s, ByteBuffer dst)
+	{
+		int pos = dst == null ? 0 : dst.position();
+		if (!parseIPv4(s, 0, s.length(), dst, pos))
+			return false;
+		if (dst != null)
+			dst.position(pos + 4);
+		return true;
+	}
+
+	/* s[start, end) as IPv4, put at dst[pos] */
+	private static boolean parseIPv4 (CharSequence s, int start, int end, ByteBuffer dst, int pos)
+	{
+		int i = start;
+		for (int part = 0; part < 4; part ++) {
+			if (part > 0) {
+				if (i == end || s.charAt(i) != '.')
+					return false;
+				i ++;
+			}
+			int value = 0;
+			int digits = 0;
+			for (; i < end && digits < 4; i ++, digits ++) {
+				char c = s.charAt(i);
+				if (c < '0' || c > '9')
+					break;
+				value = value * 10 + (c - '0');
+			}
+			if (digits == 0 || digits > 3 || value > 255)
+				return false;
+			if (dst != null)
+				dst.put(pos + part, (byte)value);
+		}
+		return i == end;
+	}
+
+	/* eight groups of up to four hex digits, separated by colons. one run
+	 * of zero groups may be "::", and the last 32 bits may be dotted
+	 * decimal, as in ::ffff:192.0.2.1. no zone IDs, no brackets. */
+	public static boolean parseIPv6 (CharSequence s, ByteBuffer dst)
+	{
+		int len = s.length();
+		if (len < 2)
+			return false;
+		int base = dst == null ? 0 : dst.position();
+		int groups = 0;
+		int gap = -1; // the number of groups before "::"
+		int i = 0;
+		if (s.charAt(0) == ':') {
+			if (s.charAt(1) != ':')
+				return false;
+			gap = 0;
+			i = 2;
+		}
+		while (i < len) {
+			int start = i;
+			int value = 0;
+			for (; i < len && i - start < 4; i ++) {
+				int digit = hexDigit(s.charAt(i));
+				if (digit < 0)
+					break;
+				value = value << 4 | digit;
+			}
+			if (i < len && s.charAt(i) == '.') {
+				// the last 32 bits in dotted decimal
+				if (groups > 6 || !parseIPv4(s, start, len, dst, base + groups * 2))
+					return false;
+				groups += 2;
+				break;
+			}
+			if (i == start || groups == 8)
+				return false;
+			if (dst != null)
+				dst.putShort(base + groups * 2, (short)value);
+			groups ++;
+			if (i == len)
+				break;
+			if (s.charAt(i) != ':' || ++ i == len)
+				return false;
+			if (s.charAt(i) == ':') {
+				if (gap >= 0)
+					return false;
+				gap = groups;
+				i ++;
+			}
+		}
+		if (gap < 0 ? groups != 8 : groups > 7)
+			return false;
+		if (dst != null) {
+			if (gap >= 0) {
+				// move the groups after "::" to the end and zero the gap
+				int tail = (groups - gap) * 2;
+				for (int k = tail - 1; k >= 0; k --)
+					dst.put(base + 16 - tail + k, dst.get(base + gap * 2 + k));
+				for (int k = gap * 2; k < 16 - tail; k ++)
+					dst.put(base + k, (byte)0);
+			}
+			dst.position(base + 16);
+		}
+		return true;
+	}
+
+	/* labels of ASCII letters, digits and '-', separated by dots, at most
+	 * MAX_HOSTNAME_LENGTH long. a hostname is its own bytes, one per char. */
+	public static boolean isHostname (CharSequence s)
+	{
+		int len = s.length();
+		if (len == 0 || len > MAX_HOSTNAME_LENGTH)
+			return false;
+		boolean labelStart = true;
+		for (int i = 0; i < len; i ++) {
+			char c = s.charAt(i);
+			if (c == '.') {
+				if (labelStart)
+					return false;
+				labelStart = true;
+			} else if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' ||
+					c >= '0' && c <= '9' || c == '-') {
+				labelStart = false;
+			} else {
+				return false;
+			}
+		}
+		return !labelStart;
+	}
+
+	private static int hexDigit (char c)
+	{
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		return -1;
+	}
+}
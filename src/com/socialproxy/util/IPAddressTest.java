@@ -0,0 +1,70 @@
+package com.socialproxy.util;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class IPAddressTest
+{
+	/* parse s after a byte of junk, and compare with the JDK's bytes */
+	private static void testValid (String s, boolean v6) throws Exception
+	{
+		ByteBuffer dst = ByteBuffer.allocate(20);
+		dst.put((byte)0x55);
+		boolean parsed = v6 ? IPAddress.parseIPv6(s, dst) : IPAddress.parseIPv4(s, dst);
+		if (!parsed || dst.position() != (v6 ? 17 : 5))
+			throw new RuntimeException("parsed=" + parsed + " position=" + dst.position() + ": " + s);
+		byte [] expected = InetAddress.getByName(s).getAddress();
+		if (v6 && expected.length == 4) {
+			// the JDK turns ::ffff:a.b.c.d into IPv4
+			byte [] mapped = new byte[16];
+			mapped[10] = mapped[11] = (byte)0xff;
+			System.arraycopy(expected, 0, mapped, 12, 4);
+			expected = mapped;
+		}
+		if (dst.get(0) != 0x55)
+			throw new RuntimeException("wrote before position: " + s);
+		if (!Arrays.equals(Arrays.copyOfRange(dst.array(), 1, dst.position()), expected))
+			throw new RuntimeException("wrong bytes: " + s);
+		if (!(v6 ? IPAddress.parseIPv6(s, null) : IPAddress.parseIPv4(s, null)))
+			throw new RuntimeException("not valid without dst: " + s);
+	}
+
+	public static void main (String [] args) throws Exception
+	{
+		testValid("0.0.0.0", false);
+		testValid("192.0.2.255", false);
+		testValid("010.1.1.1", false);
+		testValid("::", true);
+		testValid("::1", true);
+		testValid("1::", true);
+		testValid("2001:db8::1", true);
+		testValid("2001:DB8:0:0:8:800:200C:417A", true);
+		testValid("1:2:3:4:5:6:7::", true);
+		testValid("::ffff:192.0.2.1", true);
+		testValid("64:ff9b::192.0.2.1", true);
+		testValid("1:2:3:4:5:6:192.0.2.1", true);
+
+		for (String s : new String [] {"", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1.2.3.", ".1.2.3",
+				"1..2.3", "0001.1.1.1", "1.2.3.a", "::1"})
+			if (IPAddress.parseIPv4(s, null))
+				throw new RuntimeException("valid IPv4: " + s);
+		for (String s : new String [] {"", ":", ":::", "1", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9",
+				"1:2:3:4:5:6:7:8::", "1::2::3", ":1::", "1::2:", "12345::", "g::",
+				"1:2:3:4:5:6:7:192.0.2.1", "::256.0.0.1", "::1.2.3", "[::1]", "fe80::1%eth0",
+				"1.2.3.4"})
+			if (IPAddress.parseIPv6(s, null))
+				throw new RuntimeException("valid IPv6: " + s);
+
+		char [] longName = new char[IPAddress.MAX_HOSTNAME_LENGTH + 1];
+		Arrays.fill(longName, 'a');
+		for (String s : new String [] {"localhost", "www.example-1.com",
+				new String(longName, 1, IPAddress.MAX_HOSTNAME_LENGTH)})
+			if (!IPAddress.isHostname(s))
+				throw new RuntimeException("not a hostname: " + s);
+		for (String s : new String [] {"", "a..b", ".a", "a.", "a_b", "ex\u00e4mple.com",
+				new String(longName)})
+			if (IPAddress.isHostname(s))
+				throw new RuntimeException("hostname: " + s);
+	}
+}
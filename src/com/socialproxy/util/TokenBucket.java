@@ -0,0 +1,89 @@
+package com.socialproxy.util;
+
+/* A token bucket rate limiter, counting bytes.
+ * Tokens accumulate at rate per second up to burst. A user asks delayNanos()
+ * whether it may go ahead and then take()s what it actually used, which may
+ * be more than there were tokens; the bucket then goes into debt and stays
+ * closed until refilled. This lets messages be sent whole while the average
+ * rate still holds.
+ * A rate of 0 means unlimited. TokenBucket is thread safe. */
+public final class TokenBucket
+{
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	// the burst is this fraction of a second's worth of tokens ...
+	private static final int BURST_DIVISOR = 10;
+	// ... but at least this, so that slow buckets still pass whole messages
+	private static final long MIN_BURST = 16384;
+
+	private volatile long rate; // bytes per second
+	private long burst;
+	private long tokens;
+	private long lastNanos;
+
+	public TokenBucket (long rate)
+	{
+		setRate(rate, System.nanoTime());
+	}
+
+	public long getRate () {return rate;}
+
+	public void setRate (long rate)
+	{
+		setRate(rate, System.nanoTime());
+	}
+
+	/* start full */
+	public synchronized void setRate (long rate, long now)
+	{
+		if (rate < 0)
+			throw new IllegalArgumentException("rate=" + rate);
+		this.rate = rate;
+		burst = Math.max(rate / BURST_DIVISOR, MIN_BURST);
+		tokens = burst;
+		lastNanos = now;
+	}
+
+	/* return how many nanoseconds to wait until there are tokens, 0 if
+	 * there are some now */
+	public long delayNanos (long now)
+	{
+		if (rate == 0)
+			return 0;
+		synchronized (this) {
+			refill(now);
+			if (tokens > 0)
+				return 0;
+			// round up so that there is a token after the delay
+			return (long)Math.ceil((double)(1 - tokens) * NANOS_PER_SECOND / rate);
+		}
+	}
+
+	/* use size bytes worth of tokens */
+	public void take (long size)
+	{
+		if (rate == 0)
+			return;
+		synchronized (this) {
+			tokens -= size;
+		}
+	}
+
+	private void refill (long now)
+	{
+		long elapsed = now - lastNanos;
+		if (elapsed <= 0)
+			return;
+		// whole tokens only, keep the remainder of the time for next refill.
+		// in double because elapsed * rate easily overflows a long
+		double add = Math.floor((double)elapsed * rate / NANOS_PER_SECOND);
+		if (add < 1)
+			return;
+		if (tokens + add >= burst) {
+			tokens = burst;
+			lastNanos = now;
+		} else {
+			tokens += (long)add;
+			lastNanos += (long)(add * NANOS_PER_SECOND / rate);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.socialproxy.util;
+
+import java.util.Random;
+
+public class TokenBucketTest
+{
+	/* take random sized chunks from a bucket as fast as it allows for
+	 * seconds of simulated time, and check the average rate */
+	public static void test (long rate, int maxChunk, int seconds, int seed)
+	{
+		Random rand = new Random(rate + maxChunk + seed);
+		long now = 1000000000L * seed; // any start works
+		long end = now + 1000000000L * seconds;
+		TokenBucket bucket = new TokenBucket(0);
+		bucket.setRate(rate, now);
+		long taken = 0;
+		while (now < end) {
+			long delay = bucket.delayNanos(now);
+			if (delay > 0) {
+				if (bucket.delayNanos(now + delay) != 0)
+					throw new RuntimeException("still closed after delayNanos()");
+				now += delay;
+				continue;
+			}
+			int size = 1 + rand.nextInt(maxChunk);
+			bucket.take(size);
+			taken += size;
+			now += rand.nextInt(1000);
+		}
+		// the initial burst and the last chunk's debt come on top
+		long burst = Math.max(rate / 10, 16384);
+		long expected = rate * seconds;
+		if (taken < expected || taken > expected + burst + maxChunk)
+			throw new RuntimeException("rate=" + rate + " maxChunk=" + maxChunk +
+					" took " + taken + " in " + seconds + "s, expected " + expected);
+	}
+
+	public static void testUnlimited ()
+	{
+		TokenBucket bucket = new TokenBucket(0);
+		for (int i = 0; i < 1000; i ++) {
+			bucket.take(1 << 20);
+			if (bucket.delayNanos(0) != 0)
+				throw new RuntimeException("unlimited bucket closed");
+		}
+	}
+
+	public static void main (String [] args)
+	{
+		testUnlimited();
+		test(1000, 100, 100, 1);
+		test(100000, 8192, 20, 2);
+		test(100000000, 8192, 5, 3);
+		test(10000000000L, 65536, 2, 4);
+	}
+}